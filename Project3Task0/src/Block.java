@@ -1,7 +1,9 @@
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
+import java.util.Arrays;
 
 /**
  * Author: JYOTI GIRDHARI KHANCHANDANI (JKHANCHA)
@@ -14,16 +16,52 @@ import java.sql.Timestamp;
  * It demonstrates core concepts of blockchain technology including
  * hash calculation, proof of work, and block structure.
  *
+ * To keep millions of blocks in a modest heap, fields are stored compactly: the
+ * timestamp as epoch milliseconds, the data as UTF-8 bytes, and the previous and
+ * cached hashes as raw 32 byte digests. Timestamp objects and hex strings are only
+ * created when asked for, e.g. for the JSON form. A previous hash that is not a
+ * lowercase hex digest (the genesis block's "" or a corrupted value) is kept as text.
+ * On a chain with a BodyStore, the data itself moves out to the store once the
+ * block is on the chain (see storeBody and keepBody), and getData reads it back
+ * on demand.
+ *
+ * A block's header version says how it is turned into hash input. Version 1 hashes
+ * the text index + timestamp + data + previous hash + nonce + difficulty. Version 2
+ * hashes a fixed-width binary header instead (see headerPrefix()), which needs no
+ * date formatting, and whose nonce always falls in the last 64 byte block.
+ *
  * Note: This documentation was generated with assistance from Perplexity AI.
  */
 
 public class Block {
+    /** Header version 1: the original text hash input. */
+    public static final int HEADER_V1 = 1;
+    /** Header version 2: a fixed-width binary hash input. */
+    public static final int HEADER_V2 = 2;
+
+    private static final DifficultyUnit[] UNITS = DifficultyUnit.values();
+    private static final HashAlgorithm[] ALGORITHMS = HashAlgorithm.values();
+    /** Estimated heap taken by a Block object alone, with compressed references. */
+    private static final int OBJECT_BYTES = 88;
+    /** Estimated heap taken by a block's own hash: every algorithm's hashes are 32 bytes. */
+    private static final int HASH_BYTES = 48;
+
     private int index;
-    private Timestamp timestamp;
-    private String data;
-    private String previousHash;
-    private BigInteger nonce;
+    private long timestamp;
+    /** The data, or null if it is null or has been moved to bodyStore. */
+    private volatile byte[] data;
+    private byte[] previousHash;
+    private String previousHashText;
+    private long nonce;
     private int difficulty;
+    private DifficultyUnit difficultyUnit;
+    private HashAlgorithm hashAlgorithm;
+    private int headerVersion;
+    private volatile byte[] cachedHash;
+    private BlockChain chain;
+    private int position;
+    private BodyStore bodyStore;
+    private long bodyLocation;
 
     /**
      * Constructs a new Block with the given parameters.
@@ -34,36 +72,415 @@ public class Block {
      * @param difficulty The number of leading zeros required in the block's hash
      */
     public Block(int index, Timestamp timestamp, String data, int difficulty) {
+        this(index, timestamp, data, difficulty, DifficultyUnit.HEX_DIGITS);
+    }
+
+    /**
+     * Constructs a new Block whose difficulty is given in the given unit.
+     *
+     * @param index The position of the block in the chain
+     * @param timestamp The time of the block's creation
+     * @param data The transaction data contained in the block
+     * @param difficulty The number of leading zero hex digits or bits required in the block's hash
+     * @param difficultyUnit Whether difficulty counts hex digits or bits
+     */
+    public Block(int index, Timestamp timestamp, String data, int difficulty, DifficultyUnit difficultyUnit) {
+        this.index = index;
+        this.timestamp = timestamp.getTime();
+        this.data = encode(data);
+        this.difficulty = difficulty;
+        this.difficultyUnit = difficultyUnit;
+        this.hashAlgorithm = HashAlgorithm.SHA_256;
+        this.headerVersion = HEADER_V1;
+        this.nonce = 0;
+        this.previousHashText = "";
+    }
+
+    /**
+     * Copies every field of a block except the chain it is attached to.
+     * The byte arrays are shared, since the block never modifies them in place.
+     */
+    private Block(Block other) {
+        this.index = other.index;
+        this.timestamp = other.timestamp;
+        this.data = other.data;
+        this.bodyStore = other.bodyStore;
+        this.bodyLocation = other.bodyLocation;
+        this.previousHash = other.previousHash;
+        this.previousHashText = other.previousHashText;
+        this.nonce = other.nonce;
+        this.difficulty = other.difficulty;
+        this.difficultyUnit = other.difficultyUnit;
+        this.hashAlgorithm = other.hashAlgorithm;
+        this.headerVersion = other.headerVersion;
+        this.cachedHash = other.cachedHash;
+    }
+
+    /**
+     * Makes a copy of this block that is not attached to any chain. BlockChain
+     * changes copies of blocks, never blocks that readers may still be looking at.
+     *
+     * @return The copy
+     */
+    Block copy() {
+        return new Block(this);
+    }
+
+    /**
+     * Creates an empty block for readRecord to fill in.
+     */
+    private Block() {
+    }
+
+    /**
+     * Creates a block from stored fields, with no previous hash. The data array
+     * is kept, not copied.
+     */
+    Block(int index, long timestamp, byte[] data, long nonce, int difficulty, DifficultyUnit difficultyUnit,
+          HashAlgorithm hashAlgorithm, int headerVersion) {
         this.index = index;
         this.timestamp = timestamp;
         this.data = data;
+        this.nonce = nonce;
         this.difficulty = difficulty;
-        this.nonce = BigInteger.ZERO;
-        this.previousHash = "";
+        this.difficultyUnit = difficultyUnit;
+        this.hashAlgorithm = hashAlgorithm;
+        this.headerVersion = headerVersion;
     }
 
     /**
-     * Calculates the SHA-256 hash of the block's contents.
+     * Parses a block from the JSON form toString() writes. The data is not
+     * escaped there, so it is taken to run up to the last previousHash key.
+     * The hash algorithm is not part of that form; the block is SHA-256 until
+     * setHashAlgorithm is called.
      *
-     * @return A hexadecimal string representation of the block's hash
+     * @param json One block object, as written by toString()
+     * @return The block
+     * @throws IllegalArgumentException if the text is not a block written by toString()
      */
-    public String calculateHash() {
-        String input = index + timestamp.toString() + data + previousHash + nonce.toString() + difficulty;
+    public static Block parse(String json) {
+        String text = json.trim();
+        int timestampKey = text.indexOf(", \"timestamp\": \"");
+        int dataKey = text.indexOf("\", \"data\": \"", timestampKey + 1);
+        int previousKey = text.lastIndexOf("\", \"previousHash\": \"");
+        int nonceKey = text.indexOf("\", \"nonce\": ", previousKey + 1);
+        int difficultyKey = text.indexOf(", \"difficulty\": ", nonceKey + 1);
+        if (!text.startsWith("{\"index\": ") || !text.endsWith("}") || timestampKey < 0 || dataKey < 0
+                || previousKey < dataKey || nonceKey < 0 || difficultyKey < 0) {
+            throw new IllegalArgumentException("Not a block: " + text);
+        }
+        int difficultyEnd = difficultyKey + 16;
+        while (difficultyEnd < text.length() && (Character.isDigit(text.charAt(difficultyEnd))
+                || text.charAt(difficultyEnd) == '-')) {
+            difficultyEnd++;
+        }
+        String tail = text.substring(difficultyEnd, text.length() - 1);
+        int versionKey = tail.indexOf("\"version\": ");
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = md.digest(input.getBytes());
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
+            Block block = new Block(Integer.parseInt(text.substring(10, timestampKey)),
+                    Timestamp.valueOf(text.substring(timestampKey + 16, dataKey)),
+                    text.substring(dataKey + 12, previousKey),
+                    Integer.parseInt(text.substring(difficultyKey + 16, difficultyEnd)),
+                    tail.contains("\"difficultyUnit\": \"bits\"") ? DifficultyUnit.BITS : DifficultyUnit.HEX_DIGITS);
+            block.nonce = Long.parseLong(text.substring(nonceKey + 12, difficultyKey));
+            block.setPreviousHash(text.substring(previousKey + 20, nonceKey));
+            if (versionKey >= 0) {
+                block.setHeaderVersion(Integer.parseInt(tail.substring(versionKey + 11).trim()));
             }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            return block;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Not a block: " + text, e);
+        }
+    }
+
+    /**
+     * Gets the length of this block's binary record (see writeRecord).
+     *
+     * @return The record length in bytes
+     */
+    int recordLength() {
+        int length = 4 + 8 + 8 + 4 + 4 + 4;
+        if (previousHash != null) {
+            length += 4 + previousHash.length;
+        } else if (previousHashText != null) {
+            length += 4 + encode(previousHashText).length;
+        }
+        byte[] body = body(false);
+        return length + (body != null ? body.length : 0);
+    }
+
+    /**
+     * Writes the block's fields in the binary form a BlockLog stores: the index,
+     * timestamp, nonce and difficulty, one byte each for the difficulty unit, hash
+     * algorithm, header version and kind of previous hash (0 none, 1 raw digest,
+     * 2 text), then the previous hash and the data, each after its length (-1 for
+     * null data). The hash is not written; it is recomputed when needed.
+     *
+     * @param buffer The buffer to write to; its position is not used or changed
+     * @param offset Where the record starts
+     * @return The offset just past the record
+     */
+    int writeRecord(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, index);
+        buffer.putLong(offset + 4, timestamp);
+        buffer.putLong(offset + 12, nonce);
+        buffer.putInt(offset + 20, difficulty);
+        buffer.put(offset + 24, (byte) difficultyUnit.ordinal());
+        buffer.put(offset + 25, (byte) hashAlgorithm.ordinal());
+        buffer.put(offset + 26, (byte) headerVersion);
+        offset += 28;
+        byte[] previous = previousHash != null ? previousHash : encode(previousHashText);
+        buffer.put(offset - 1, (byte) (previousHash != null ? 1 : previousHashText != null ? 2 : 0));
+        if (previous != null) {
+            buffer.putInt(offset, previous.length);
+            buffer.put(offset + 4, previous);
+            offset += 4 + previous.length;
+        }
+        byte[] body = body(false);
+        buffer.putInt(offset, body != null ? body.length : -1);
+        offset += 4;
+        if (body != null) {
+            buffer.put(offset, body);
+            offset += body.length;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads a block written by writeRecord. The block is not attached to any chain.
+     *
+     * @param buffer The buffer to read from; its position is not used or changed
+     * @param offset Where the record starts
+     * @return The block
+     */
+    static Block readRecord(ByteBuffer buffer, int offset) {
+        Block block = new Block();
+        block.index = buffer.getInt(offset);
+        block.timestamp = buffer.getLong(offset + 4);
+        block.nonce = buffer.getLong(offset + 12);
+        block.difficulty = buffer.getInt(offset + 20);
+        block.difficultyUnit = UNITS[buffer.get(offset + 24)];
+        block.hashAlgorithm = ALGORITHMS[buffer.get(offset + 25)];
+        block.headerVersion = buffer.get(offset + 26);
+        int previousKind = buffer.get(offset + 27);
+        offset += 28;
+        if (previousKind != 0) {
+            byte[] previous = new byte[buffer.getInt(offset)];
+            buffer.get(offset + 4, previous);
+            offset += 4 + previous.length;
+            if (previousKind == 1) {
+                block.previousHash = previous;
+            } else {
+                block.previousHashText = new String(previous, StandardCharsets.UTF_8);
+            }
+        }
+        int dataLength = buffer.getInt(offset);
+        if (dataLength >= 0) {
+            block.data = new byte[dataLength];
+            buffer.get(offset + 4, block.data);
+        }
+        return block;
+    }
+
+    /**
+     * Reads just the data of a block written by writeRecord.
+     *
+     * @param buffer The buffer to read from; its position is not used or changed
+     * @param offset Where the record starts
+     * @return The data, or null if the block has none
+     */
+    static byte[] readRecordData(ByteBuffer buffer, int offset) {
+        int previousKind = buffer.get(offset + 27);
+        offset += 28;
+        if (previousKind != 0) {
+            offset += 4 + buffer.getInt(offset);
+        }
+        int dataLength = buffer.getInt(offset);
+        if (dataLength < 0) {
+            return null;
+        }
+        byte[] data = new byte[dataLength];
+        buffer.get(offset + 4, data);
+        return data;
+    }
+
+    /**
+     * Calculates the hash of the block's contents with the block's hash algorithm
+     * (SHA-256 unless the block belongs to a chain created with another one).
+     * The hash is remembered until a field it covers is changed, so repeated
+     * calls on an unchanged block do no hashing.
+     *
+     * @return A hexadecimal string representation of the block's hash
+     */
+    public String calculateHash() {
+        return HeaderHasher.toHex(hashBytes());
+    }
+
+    /**
+     * Gets the block's raw hash, computing it only if a field has changed.
+     *
+     * @return The digest. It is shared, so callers must not modify it.
+     */
+    byte[] hashBytes() {
+        byte[] hash = cachedHash;
+        if (hash == null) {
+            byte[] nonceBytes = new byte[20];
+            int nonceLength = HeaderHasher.writeNonce(nonce, hasBinaryNonce(), nonceBytes, 0);
+            MessageDigest md = hashAlgorithm.newDigest();
+            md.update(headerPrefix());
+            md.update(nonceBytes, 0, nonceLength);
+            md.update(headerSuffix());
+            hash = md.digest();
+            cachedHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Checks the block's own hash against its difficulty without hex encoding it.
+     *
+     * @return true if the block's proof of work holds
+     */
+    boolean hasValidProofOfWork() {
+        int bits = getRequiredZeroBits();
+        return bits <= 0 || HeaderHasher.hasLeadingZeroBits(hashBytes(), bits);
+    }
+
+    /**
+     * Checks whether this block's previous hash is the given block's hash.
+     *
+     * @param previous The block before this one
+     * @return true if the two blocks are linked
+     */
+    boolean linksTo(Block previous) {
+        return previousHash != null && Arrays.equals(previousHash, previous.hashBytes());
+    }
+
+    /**
+     * Sets this block's previous hash to the given block's hash.
+     *
+     * @param previous The block before this one
+     */
+    void linkTo(Block previous) {
+        if (!linksTo(previous)) {
+            previousHash = previous.hashBytes().clone();
+            previousHashText = null;
+            changed();
+        }
+    }
+
+    /**
+     * Forgets the cached hash and tells the chain holding this block, if any,
+     * that the block has to be validated again.
+     */
+    private void changed() {
+        cachedHash = null;
+        if (chain != null) {
+            chain.blockChanged(position);
         }
     }
 
+    /**
+     * Records the chain this block has been added to and its position there.
+     *
+     * @param chain The chain holding the block, or null once it has been replaced there
+     * @param position The block's position in the chain
+     */
+    void attach(BlockChain chain, int position) {
+        this.chain = chain;
+        this.position = position;
+    }
+
+    /**
+     * Moves the block's data out to a body store, keeping only where it went.
+     * The hash is worked out first, so checking the block does not need the data
+     * again. Nothing changes that a reader of the block could see; null and
+     * empty data, and data already in a store, stay as they are.
+     *
+     * @param store The store to move the data to
+     */
+    void storeBody(BodyStore store) {
+        byte[] body = data;
+        if (body == null || body.length == 0) {
+            return;
+        }
+        hashBytes();
+        bodyLocation = store.write(body);
+        bodyStore = store;
+        // Written last: a reader that sees no data also sees where it went
+        data = null;
+    }
+
+    /**
+     * Drops the block's data from the heap, keeping where its record in the body
+     * store's block log is, since the record already holds the data. A block
+     * just added or changed is hashed first and its body cached, as storeBody
+     * does; a block read back from the log is left as it is, so reopening a chain
+     * hashes nothing, and is hashed from its record when its hash is first needed.
+     *
+     * @param store The store, reading from the log the block was written to
+     * @param location Where the block's record is (see BlockLog.locationOf)
+     * @param recent true for a block just added or changed
+     */
+    void keepBody(BodyStore store, long location, boolean recent) {
+        byte[] body = data;
+        if (body == null || body.length == 0) {
+            return;
+        }
+        if (recent) {
+            hashBytes();
+            store.remember(location, body);
+        }
+        bodyLocation = location;
+        bodyStore = store;
+        // Written last: a reader that sees no data also sees where it went
+        data = null;
+    }
+
+    /**
+     * Gets the data as bytes, reading it back from the body store if it was moved there.
+     *
+     * @param cache false to leave the store's cache as it is, when the data is only
+     *              needed for hashing or writing the block's record
+     */
+    private byte[] body(boolean cache) {
+        byte[] body = data;
+        BodyStore store = bodyStore;
+        if (body != null || store == null) {
+            return body;
+        }
+        return cache ? store.read(bodyLocation) : store.peek(bodyLocation);
+    }
+
+    /**
+     * Estimates the heap the block takes apart from its data: the object and its
+     * hashes. Its own hash is counted whether or not it has been worked out yet,
+     * so the estimate does not change as the block is hashed.
+     *
+     * @return The estimated bytes
+     */
+    long headerHeapBytes() {
+        long bytes = OBJECT_BYTES + arrayBytes(previousHash) + HASH_BYTES;
+        if (previousHashText != null) {
+            bytes += 24 + 16 + previousHashText.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the heap the block's data takes, which is none once it has been
+     * moved to a body store.
+     *
+     * @return The estimated bytes
+     */
+    long dataHeapBytes() {
+        return arrayBytes(data);
+    }
+
+    private static long arrayBytes(byte[] array) {
+        return array == null ? 0 : (16 + array.length + 7) & ~7;
+    }
+
     /**
      * Performs the proof of work algorithm to find a hash with the required difficulty.
      *
@@ -72,19 +489,187 @@ public class Block {
     public String proofOfWork() {
         String hash;
         do {
-            nonce = nonce.add(BigInteger.ONE);
+            if (nonce == Long.MAX_VALUE) {
+                rollOver();
+            }
+            nonce++;
+            changed();
             hash = calculateHash();
-        } while (!hash.substring(0, difficulty).equals("0".repeat(difficulty)));
+        } while (!meetsDifficulty(hash));
         return hash;
     }
 
+    /**
+     * Checks whether a hash has as many leading zeros as this block's difficulty requires.
+     *
+     * @param hash A hexadecimal hash string
+     * @return true if the hash satisfies the difficulty
+     */
+    public boolean meetsDifficulty(String hash) {
+        int bits = getRequiredZeroBits();
+        int fullDigits = bits / 4;
+        for (int i = 0; i < fullDigits; i++) {
+            if (hash.charAt(i) != '0') {
+                return false;
+            }
+        }
+        int rest = bits % 4;
+        return rest == 0 || Character.digit(hash.charAt(fullDigits), 16) < (16 >> rest);
+    }
+
+    /**
+     * Gets the part of the hash input that comes before the nonce.
+     * It stays the same for every nonce tried on this block.
+     *
+     * @return The index, timestamp, data and previous hash concatenated
+     */
+    String hashPrefix() {
+        byte[] body = body(false);
+        String data = body != null ? new String(body, StandardCharsets.UTF_8) : null;
+        return index + new Timestamp(timestamp).toString() + data + getPreviousHash();
+    }
+
+    /**
+     * Gets the bytes of the hash input that come before the nonce.
+     * For version 2 they are, in order: the version byte, the index (4 bytes),
+     * the timestamp in epoch milliseconds (8), the previous hash (32), the digest
+     * of the data (32), the difficulty (4) and its unit (1), all big-endian; the
+     * 8 byte nonce follows. A previous hash kept as text is hashed into 32 bytes,
+     * except for "", which becomes 32 zero bytes.
+     *
+     * @return The header prefix
+     */
+    byte[] headerPrefix() {
+        if (headerVersion == HEADER_V1) {
+            return hashPrefix().getBytes();
+        }
+        ByteBuffer header = ByteBuffer.allocate(82);
+        header.put((byte) headerVersion);
+        header.putInt(index);
+        header.putLong(timestamp);
+        if (previousHash != null) {
+            header.put(previousHash);
+        } else if (previousHashText == null || previousHashText.isEmpty()) {
+            header.put(new byte[32]);
+        } else {
+            header.put(hashAlgorithm.newDigest().digest(previousHashText.getBytes(StandardCharsets.UTF_8)));
+        }
+        byte[] body = body(false);
+        header.put(hashAlgorithm.newDigest().digest(body != null ? body : new byte[0]));
+        header.putInt(difficulty);
+        header.put((byte) difficultyUnit.ordinal());
+        return header.array();
+    }
+
+    /**
+     * Gets the bytes of the hash input that come after the nonce.
+     *
+     * @return The difficulty text for version 1, nothing for version 2
+     */
+    byte[] headerSuffix() {
+        return headerVersion == HEADER_V1 ? difficultyText().getBytes() : new byte[0];
+    }
+
+    /**
+     * Checks whether the nonce is hashed as 8 binary bytes rather than decimal digits.
+     *
+     * @return true for version 2 headers
+     */
+    boolean hasBinaryNonce() {
+        return headerVersion != HEADER_V1;
+    }
+
+    /**
+     * Gets the difficulty as it appears at the end of the hash input.
+     * Bit difficulties carry a "b" so a block cannot be passed off with the other unit.
+     *
+     * @return The difficulty text
+     */
+    String difficultyText() {
+        return difficultyUnit == DifficultyUnit.BITS ? difficulty + "b" : Integer.toString(difficulty);
+    }
+
+    /**
+     * Performs the proof of work on the given number of threads, hashing with
+     * reusable per-thread buffers instead of building a String per attempt.
+     * The winning nonce is the same one the serial proofOfWork() would find.
+     *
+     * @param threads The number of worker threads to search with
+     * @return A hash string that meets the difficulty requirement
+     */
+    public String proofOfWork(int threads) {
+        return proofOfWork(threads, HashEngine.JDK);
+    }
+
+    /**
+     * Performs the proof of work on the given number of threads with the given
+     * SHA-256 implementation. Every engine finds the same nonce.
+     *
+     * @param threads The number of worker threads to search with
+     * @param engine The SHA-256 implementation to hash headers with
+     * @return A hash string that meets the difficulty requirement
+     */
+    public String proofOfWork(int threads, HashEngine engine) {
+        return proofOfWork(threads, engine, null, null);
+    }
+
+    /**
+     * Performs the proof of work for a MiningTask, which counts the attempts and
+     * can stop the search, saving progress to a checkpoint as it goes.
+     * The nonce is only changed if a valid one is found.
+     *
+     * @param threads The number of worker threads to search with
+     * @param engine The SHA-256 implementation to hash headers with
+     * @param task The task tracking this block, or null
+     * @param checkpoint Where to save progress, or null
+     * @return A hash string that meets the difficulty requirement
+     * @throws java.util.concurrent.CancellationException if the task was cancelled or timed out
+     */
+    String proofOfWork(int threads, HashEngine engine, MiningTask task, MiningCheckpoint checkpoint) {
+        long found = nonce == Long.MAX_VALUE
+                ? ParallelMiner.NOT_FOUND
+                : ParallelMiner.findNonce(this, nonce + 1, threads, engine, task, checkpoint);
+        while (found == ParallelMiner.NOT_FOUND) {
+            rollOver();
+            found = ParallelMiner.findNonce(this, nonce + 1, threads, engine, task, checkpoint);
+        }
+        nonce = found;
+        changed();
+        return calculateHash();
+    }
+
+    /**
+     * Starts a fresh nonce space once every long nonce has been tried,
+     * by moving the timestamp on by one millisecond and resetting the nonce.
+     * This keeps the hash input and JSON layout unchanged.
+     */
+    private void rollOver() {
+        timestamp++;
+        nonce = 0;
+        changed();
+    }
+
     /**
      * Gets the nonce value used in the proof of work.
      *
+     * The nonce is kept as a primitive long while mining; it is returned as a
+     * BigInteger for compatibility with existing callers.
+     *
      * @return The nonce as a BigInteger
      */
     public BigInteger getNonce() {
-        return nonce;
+        return BigInteger.valueOf(nonce);
+    }
+
+    /**
+     * Sets the nonce. Used to carry on mining from a checkpoint: the next
+     * proof of work starts at the nonce after this one.
+     *
+     * @param nonce The last nonce tried
+     */
+    void setNonce(long nonce) {
+        this.nonce = nonce;
+        changed();
     }
 
     /**
@@ -96,25 +681,121 @@ public class Block {
         return difficulty;
     }
 
+    /**
+     * Gets the unit the difficulty is expressed in.
+     *
+     * @return HEX_DIGITS or BITS
+     */
+    public DifficultyUnit getDifficultyUnit() {
+        return difficultyUnit;
+    }
+
+    /**
+     * Sets the unit the difficulty is expressed in.
+     *
+     * @param difficultyUnit HEX_DIGITS or BITS
+     */
+    public void setDifficultyUnit(DifficultyUnit difficultyUnit) {
+        int oldZeroBits = getRequiredZeroBits();
+        this.difficultyUnit = difficultyUnit;
+        if (chain != null) {
+            chain.difficultyChanged(this, difficulty, oldZeroBits);
+        }
+        changed();
+    }
+
+    /**
+     * Gets the hash algorithm the block is hashed with.
+     *
+     * @return The hash algorithm
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * Sets the hash algorithm the block is hashed with. BlockChain sets this to
+     * the chain's algorithm when the block is added.
+     *
+     * @param hashAlgorithm The hash algorithm
+     */
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+        changed();
+    }
+
+    /**
+     * Gets the header version, which decides how the block is hashed.
+     *
+     * @return HEADER_V1 or HEADER_V2
+     */
+    public int getHeaderVersion() {
+        return headerVersion;
+    }
+
+    /**
+     * Sets the header version. BlockChain sets this to the chain's version when
+     * the block is added.
+     *
+     * @param headerVersion HEADER_V1 or HEADER_V2
+     */
+    public void setHeaderVersion(int headerVersion) {
+        if (headerVersion != HEADER_V1 && headerVersion != HEADER_V2) {
+            throw new IllegalArgumentException("Unknown header version: " + headerVersion);
+        }
+        this.headerVersion = headerVersion;
+        changed();
+    }
+
+    /**
+     * Gets the number of leading zero bits the block's hash must have.
+     *
+     * @return The required zero bits
+     */
+    public int getRequiredZeroBits() {
+        return difficultyUnit.zeroBits(difficulty);
+    }
+
+    /**
+     * Gets the expected number of hashes needed to mine this block.
+     *
+     * @return 2 to the power of the required zero bits
+     */
+    public double getExpectedHashes() {
+        return Math.pow(2, getRequiredZeroBits());
+    }
+
     /**
      * Sets the difficulty level of the block.
      *
      * @param difficulty The new difficulty level
      */
     public void setDifficulty(int difficulty) {
+        int oldDifficulty = this.difficulty;
+        int oldZeroBits = getRequiredZeroBits();
         this.difficulty = difficulty;
+        if (chain != null) {
+            chain.difficultyChanged(this, oldDifficulty, oldZeroBits);
+        }
+        changed();
     }
 
     /**
      * Provides a string representation of the block in JSON format.
+     * Blocks with a bit difficulty also carry a difficultyUnit field, and
+     * blocks with a version 2 header a version field. The data is read without
+     * going through the body store's cache, as the whole chain's JSON form is
+     * written block by block.
      *
      * @return A JSON string representing the block's data
      */
     @Override
     public String toString() {
+        String unit = difficultyUnit == DifficultyUnit.BITS ? ", \"difficultyUnit\": \"bits\"" : "";
+        String version = headerVersion != HEADER_V1 ? ", \"version\": " + headerVersion : "";
         return String.format(
-                "{\"index\": %d, \"timestamp\": \"%s\", \"data\": \"%s\", \"previousHash\": \"%s\", \"nonce\": %d, \"difficulty\": %d}",
-                index, timestamp, data, previousHash, nonce, difficulty
+                "{\"index\": %d, \"timestamp\": \"%s\", \"data\": \"%s\", \"previousHash\": \"%s\", \"nonce\": %d, \"difficulty\": %d%s%s}",
+                index, getTimestamp(), peekData(), getPreviousHash(), nonce, difficulty, unit, version
         );
     }
 
@@ -124,7 +805,17 @@ public class Block {
      * @param previousHash The hash of the previous block
      */
     public void setPreviousHash(String previousHash) {
-        this.previousHash = previousHash;
+        if (isHexDigest(previousHash)) {
+            this.previousHash = new byte[previousHash.length() / 2];
+            for (int i = 0; i < this.previousHash.length; i++) {
+                this.previousHash[i] = (byte) Integer.parseInt(previousHash.substring(2 * i, 2 * i + 2), 16);
+            }
+            this.previousHashText = null;
+        } else {
+            this.previousHash = null;
+            this.previousHashText = previousHash;
+        }
+        changed();
     }
 
     /**
@@ -133,7 +824,7 @@ public class Block {
      * @return The hash of the previous block
      */
     public String getPreviousHash() {
-        return previousHash;
+        return previousHash != null ? HeaderHasher.toHex(previousHash) : previousHashText;
     }
 
     /**
@@ -152,6 +843,7 @@ public class Block {
      */
     public void setIndex(int index) {
         this.index = index;
+        changed();
     }
 
     /**
@@ -160,16 +852,18 @@ public class Block {
      * @param timestamp The new timestamp for the block
      */
     public void setTimestamp(Timestamp timestamp) {
-        this.timestamp = timestamp;
+        this.timestamp = timestamp.getTime();
+        changed();
     }
 
     /**
-     * Gets the timestamp of the block.
+     * Gets the timestamp of the block. The block keeps the time as epoch
+     * milliseconds, so each call returns a new Timestamp.
      *
      * @return The timestamp of the block
      */
     public Timestamp getTimestamp() {
-        return timestamp;
+        return new Timestamp(timestamp);
     }
 
     /**
@@ -178,7 +872,19 @@ public class Block {
      * @return The transaction data as a string
      */
     public String getData() {
-        return data;
+        byte[] body = body(true);
+        return body != null ? new String(body, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Gets the transaction data like getData, but reads a body in the body store
+     * without caching it, for passes over the whole chain such as exports.
+     *
+     * @return The transaction data as a string
+     */
+    String peekData() {
+        byte[] body = body(false);
+        return body != null ? new String(body, StandardCharsets.UTF_8) : null;
     }
 
     /**
@@ -187,6 +893,29 @@ public class Block {
      * @param data The new transaction data
      */
     public void setData(String data) {
-        this.data = data;
+        this.bodyStore = null;
+        this.data = encode(data);
+        changed();
+    }
+
+    private static byte[] encode(String text) {
+        return text != null ? text.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Checks whether a previous hash can be stored as raw bytes and turned back
+     * into exactly the same text: 64 lowercase hex digits.
+     */
+    private static boolean isHexDigest(String text) {
+        if (text == null || text.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -1,8 +1,25 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.Timestamp;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
 import java.util.Scanner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Author: JYOTI GIRDHARI KHANCHANDANI (JKHANCHA)
@@ -11,24 +28,139 @@ import java.util.Scanner;
  * This class represents a simple BlockChain.
  * It maintains an ArrayList of Blocks, a chain hash of the most recently added Block,
  * and an approximation of hashes per second on the current machine.
+ * The hash rate is measured on a background thread the first time it is asked
+ * for, by running the real mining path for a moment, and can be remembered per
+ * host and JVM in a HashRateCache so a restart does not measure it again.
+ *
+ * The chain is safe to use from many threads. Its state is held in an immutable
+ * ChainSnapshot published through a volatile reference: reads such as view, status,
+ * verify and getBlock work on one snapshot and never block, while add, corrupt and
+ * repair build a new snapshot and publish it in one step under a write lock, so a
+ * reader never sees half of a change. Blocks are mined outside the lock; if the
+ * chain's tail changed meanwhile, the block is linked to the new tail and mined again.
+ * Blocks on the chain are changed through setBlockData and repairChain, which
+ * replace copies; changing a block in place is only safe on one thread.
+ *
+ * Blocks can also be looked up by hash in O(1). The chain keeps a map from each
+ * block's hash to its position, updated before every new snapshot is published
+ * and after blocks are replaced; a lookup confirms the block at the mapped position
+ * really has the hash asked for, so it never returns a block from the wrong chain state.
+ *
+ * A chain opened on a BlockLog (see open()) starts with the blocks stored there and
+ * writes every block it appends or replaces to the log before publishing it, so
+ * the chain survives a restart. Blocks changed in place are not written.
+ * For export, exportCompact writes the chain without its hashes, which
+ * importCompact recomputes. importJson reads a toString() dump back, checking
+ * it on all cores, and swaps it in for the whole chain in one step. exportJson
+ * keeps a file holding toString()'s form up to date, written block by block, so
+ * the chain can be sent on as bytes without ever being built as one String.
+ *
+ * With a BodyStore (see setBodyStore), only block headers stay on the heap: each
+ * block's data moves out to the store once the block is on the chain and is read
+ * back, through the store's bounded cache, only when it is asked for. A chain
+ * open on a log keeps its bodies in the log itself (see BodyStore.open(BlockLog)).
  *
  * Note: This code was generated with assistance from Perplexity AI.
  */
 public class BlockChain {
-    private ArrayList<Block> blocks;
-    private String chainHash;
-    private int hashesPerSecond;
+    /** How long calibration mines for, after a warm-up a fifth as long. */
+    private static final long CALIBRATION_MILLIS = 500;
+
+    private static final ExecutorService CALIBRATOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hash-calibration");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    private volatile ChainSnapshot snapshot;
+    /** Position of each block on the chain, keyed by the last 8 bytes of its hash (see hashKey). */
+    private final ConcurrentHashMap<Long, Integer> positionsByHash = new ConcurrentHashMap<>();
+    /** Positions of blocks changed in place since they were put in positionsByHash. */
+    private final Set<Integer> changedPositions = ConcurrentHashMap.newKeySet();
+    /** Held while publishing a new snapshot, and while repairing. */
+    private final Object writeLock = new Object();
     /**
-     * Constructs a new BlockChain.
-     * Initializes an empty ArrayList for Block storage, sets the chain hash to an empty string,
-     * and sets hashes per second to 0.
+     * The last known rate. Mining and repair read it directly rather than through
+     * getHashesPerSecond(), so they never start a calibration that competes with them.
+     */
+    private volatile int hashesPerSecond;
+    private final HashAlgorithm hashAlgorithm;
+    private final int headerVersion;
+    private volatile int miningThreads;
+    private volatile HashEngine hashEngine;
+    private volatile RetargetPolicy retargetPolicy;
+    private ExecutorService miner;
+    private volatile MiningCheckpoint checkpoint;
+    private volatile HashRateCache hashRateCache;
+    private CompletableFuture<Integer> calibration;
+    private volatile boolean parallelValidation = true;
+    private volatile BlockLog blockLog;
+    /** Blocks below this position were read from the block log and are not in positionsByHash yet. */
+    private volatile int unindexedBlocks;
+    private volatile BodyStore bodyStore;
+    /** The chain state last written by exportJson, or null if it has changed in place since. */
+    private volatile ChainSnapshot exported;
+    /** Guards exportJson's file writes and exportedFile, apart from the chain's other locks. */
+    private final Object exportLock = new Object();
+    private Path exportedFile;
+
+    /**
+     * Constructs a new BlockChain that hashes version 2 headers with SHA-256.
+     * Starts from an empty snapshot, with the chain hash set to an empty string,
+     * and sets hashes per second to 0 until it has been calibrated.
      */
     public BlockChain() {
-        this.blocks = new ArrayList<>();
-        this.chainHash = "";
+        this(HashAlgorithm.SHA_256);
+    }
+
+    /**
+     * Constructs a new BlockChain that hashes version 2 headers with the given algorithm.
+     * The algorithm is fixed for the life of the chain: every block added is
+     * hashed, validated and repaired with it.
+     *
+     * @param hashAlgorithm The hash algorithm for this chain.
+     */
+    public BlockChain(HashAlgorithm hashAlgorithm) {
+        this(hashAlgorithm, Block.HEADER_V2);
+    }
+
+    /**
+     * Constructs a new BlockChain with the given hash algorithm and header version.
+     * Version 1 is for chains that must keep hashing the original text header.
+     *
+     * @param hashAlgorithm The hash algorithm for this chain.
+     * @param headerVersion Block.HEADER_V1 or Block.HEADER_V2, stamped on every block added.
+     */
+    public BlockChain(HashAlgorithm hashAlgorithm, int headerVersion) {
+        if (headerVersion != Block.HEADER_V1 && headerVersion != Block.HEADER_V2) {
+            throw new IllegalArgumentException("Unknown header version: " + headerVersion);
+        }
+        this.hashAlgorithm = hashAlgorithm;
+        this.headerVersion = headerVersion;
+        this.snapshot = ChainSnapshot.EMPTY;
         this.hashesPerSecond = 0;
-        computeHashesPerSecond();
+        this.miningThreads = Runtime.getRuntime().availableProcessors();
+        this.hashEngine = HashEngine.JDK;
+    }
+
+    /**
+     * Gets the hash algorithm this chain was created with.
+     *
+     * @return The hash algorithm; its id is getHashAlgorithm().getId().
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * Gets the header version this chain stamps on the blocks it adds. Blocks
+     * already on the chain keep the version they were mined with, so a chain
+     * can hold, and validate, blocks of both versions.
+     *
+     * @return Block.HEADER_V1 or Block.HEADER_V2
+     */
+    public int getHeaderVersion() {
+        return headerVersion;
     }
 
     /**
@@ -37,7 +169,17 @@ public class BlockChain {
      * @return The hash of the most recently added Block.
      */
     public String getChainHash() {
-        return chainHash;
+        return snapshot.getChainHash();
+    }
+
+    /**
+     * Gets the chain as it is now. Use one snapshot for several reads that
+     * must agree with each other, e.g. a status report.
+     *
+     * @return The current snapshot
+     */
+    public ChainSnapshot snapshot() {
+        return snapshot;
     }
 
     /**
@@ -55,7 +197,7 @@ public class BlockChain {
      * @return A reference to the most recently added Block, or null if the chain is empty.
      */
     public Block getLatestBlock() {
-        return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        return snapshot.getLatestBlock();
     }
 
     /**
@@ -64,46 +206,659 @@ public class BlockChain {
      * @return The number of Blocks in the chain.
      */
     public int getChainSize() {
-        return blocks.size();
+        return snapshot.getChainSize();
     }
 
     /**
-     * Computes the approximate number of hashes per second on this machine.
-     * This method computes exactly 2 million hashes and times how long that process takes.
+     * Computes the approximate number of hashes per second on this machine, on the
+     * calling thread. It mines a block that can never be solved, with the chain's
+     * hash algorithm, header version, engine and mining threads, for half a second
+     * after a short warm-up, and counts the nonces tried. The result is saved to
+     * the hash rate cache, if there is one.
      */
     public void computeHashesPerSecond() {
-        long startTime = System.currentTimeMillis();
-        String testString = "00000000";
-        for (int i = 0; i < 2_000_000; i++) {
-            simulateHashCalculation(testString);
+        measureHashesPerSecond(CALIBRATION_MILLIS / 5);
+        int measured = measureHashesPerSecond(CALIBRATION_MILLIS);
+        this.hashesPerSecond = measured;
+        HashRateCache cache = hashRateCache;
+        if (cache != null) {
+            cache.save(calibrationKey(), measured);
+        }
+    }
+
+    /**
+     * Mines an unsolvable block for a while.
+     *
+     * @return The nonces tried per second
+     */
+    private int measureHashesPerSecond(long millis) {
+        Block probe = new Block(0, getTime(), "calibration", 256, DifficultyUnit.BITS);
+        probe.setHashAlgorithm(hashAlgorithm);
+        probe.setHeaderVersion(headerVersion);
+        probe.setPreviousHash(HeaderHasher.toHex(new byte[32]));
+        MiningTask task = new MiningTask(probe, 0, TimeUnit.MILLISECONDS.toNanos(millis));
+        task.begin();
+        long start = System.nanoTime();
+        try {
+            ParallelMiner.findNonce(probe, 0, miningThreads, hashEngine, task, null);
+        } catch (CancellationException e) {
+            // The task's deadline ends the measurement
         }
-        long endTime = System.currentTimeMillis();
-        double seconds = (endTime - startTime) / 1000.0;
-        this.hashesPerSecond = (int) (2_000_000 / seconds);
+        long elapsed = System.nanoTime() - start;
+        return (int) Math.min(Integer.MAX_VALUE, task.getAttempts() * 1_000_000_000L / Math.max(1, elapsed));
     }
 
     /**
-     * Gets the number of hashes per second.
+     * Starts calibrating the hash rate on a background thread, unless that has
+     * already been done for the current mining setup. A rate saved in the hash
+     * rate cache for this host, JVM and setup is used instead of measuring.
+     *
+     * @return A future completing with the hashes per second
+     */
+    public synchronized CompletableFuture<Integer> calibrate() {
+        if (calibration == null) {
+            calibration = CompletableFuture.supplyAsync(() -> {
+                HashRateCache cache = hashRateCache;
+                int known = cache != null ? cache.load(calibrationKey()) : 0;
+                if (known > 0) {
+                    hashesPerSecond = known;
+                } else {
+                    computeHashesPerSecond();
+                }
+                return hashesPerSecond;
+            }, CALIBRATOR);
+        }
+        return calibration;
+    }
+
+    /**
+     * Makes the next calibrate() measure again, after the mining setup changed.
+     * The last known rate is kept until then.
+     */
+    private synchronized void recalibrateLater() {
+        calibration = null;
+    }
+
+    /**
+     * Names what the hash rate depends on, for the hash rate cache.
+     */
+    private String calibrationKey() {
+        return HashRateCache.machineKey() + "|" + hashAlgorithm.getId() + "|header v" + headerVersion
+                + "|" + hashEngine + "|" + miningThreads + " threads";
+    }
+
+    /**
+     * Gets the number of hashes per second. This never waits for a measurement:
+     * the first call starts calibrating in the background (see calibrate()) and
+     * every call returns the last known rate, which is 0 until the first
+     * calibration has finished.
      *
      * @return The approximate number of hashes per second.
      */
     public int getHashesPerSecond() {
+        calibrate();
         return hashesPerSecond;
     }
 
+    /**
+     * Gets the cache measured hash rates are saved to.
+     *
+     * @return The cache, or null if rates are not saved
+     */
+    public HashRateCache getHashRateCache() {
+        return hashRateCache;
+    }
+
+    /**
+     * Sets a cache to save measured hash rates to and look them up in, so that a
+     * restarted chain on the same host and JVM knows its rate at once.
+     *
+     * @param hashRateCache The cache, or null to always measure
+     */
+    public void setHashRateCache(HashRateCache hashRateCache) {
+        this.hashRateCache = hashRateCache;
+        recalibrateLater();
+    }
+
+    /**
+     * Gets the number of threads used for proof of work.
+     *
+     * @return The number of mining threads.
+     */
+    public int getMiningThreads() {
+        return miningThreads;
+    }
+
+    /**
+     * Sets the number of threads used for proof of work by addBlock and repairChain.
+     * A value of 1 uses the serial search.
+     *
+     * @param miningThreads The number of mining threads, at least 1.
+     */
+    public void setMiningThreads(int miningThreads) {
+        this.miningThreads = Math.max(1, miningThreads);
+        recalibrateLater();
+    }
+
+    /**
+     * Gets the SHA-256 implementation used for proof of work.
+     *
+     * @return The hash engine.
+     */
+    public HashEngine getHashEngine() {
+        return hashEngine;
+    }
+
+    /**
+     * Sets the SHA-256 implementation used for proof of work by addBlock and repairChain.
+     * All engines produce the same hashes; JDK is the default.
+     *
+     * @param hashEngine The hash engine to mine with.
+     */
+    public void setHashEngine(HashEngine hashEngine) {
+        this.hashEngine = hashEngine;
+        recalibrateLater();
+    }
+
+    /**
+     * Gets the retargeting policy, if any.
+     *
+     * @return The policy, or null if blocks keep the difficulty they were created with.
+     */
+    public RetargetPolicy getRetargetPolicy() {
+        return retargetPolicy;
+    }
+
+    /**
+     * Sets a policy that chooses a bit difficulty for every block added from now on,
+     * based on how long recent blocks took to mine. Pass null to turn retargeting off.
+     * Until the policy has seen a block mined, it uses the calibrated hash rate,
+     * and the first block waits for calibration to finish if it has not yet.
+     *
+     * @param retargetPolicy The policy to apply, or null.
+     */
+    public void setRetargetPolicy(RetargetPolicy retargetPolicy) {
+        this.retargetPolicy = retargetPolicy;
+    }
+
+    /**
+     * Checks whether long validations are spread across cores.
+     *
+     * @return true if isChainValid checks long runs of blocks in parallel
+     */
+    public boolean isParallelValidation() {
+        return parallelValidation;
+    }
+
+    /**
+     * Sets whether isChainValid spreads long runs of blocks across cores, as after
+     * a cold start or an import. The result is the same either way.
+     *
+     * @param parallelValidation true to validate in parallel
+     */
+    public void setParallelValidation(boolean parallelValidation) {
+        this.parallelValidation = parallelValidation;
+    }
+
+    /**
+     * Gets the checkpoint that addBlock saves mining progress to.
+     *
+     * @return The checkpoint, or null if progress is not saved
+     */
+    public MiningCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets a checkpoint for addBlock to save mining progress to. A block whose
+     * progress is found in the checkpoint, e.g. after a restart, carries on from
+     * the saved nonce instead of nonce zero.
+     *
+     * @param checkpoint The checkpoint, or null to stop saving progress
+     */
+    public void setCheckpoint(MiningCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Gets the block log the chain is kept in.
+     *
+     * @return The log, or null if the chain is only kept in memory
+     */
+    public BlockLog getBlockLog() {
+        return blockLog;
+    }
+
+    /**
+     * Opens the chain on a block log. If the log holds blocks, they become the
+     * chain, which must be empty; they are not validated until isChainValid is
+     * called. Otherwise the blocks already on the chain are written to the log.
+     * From then on every block added, corrupted or repaired is written to the log
+     * before it is published.
+     *
+     * @param log The block log
+     * @return The number of blocks read from the log
+     */
+    public int open(BlockLog log) {
+        synchronized (writeLock) {
+            if (blockLog != null) {
+                throw new IllegalStateException("The chain is already open on " + blockLog.getDirectory());
+            }
+            ChainSnapshot current = snapshot;
+            int loaded = log.size();
+            if (loaded > 0) {
+                if (current.getChainSize() > 0) {
+                    throw new IllegalStateException("Both the chain and the log in " + log.getDirectory() + " hold blocks");
+                }
+                load(ChainSnapshot.of(log.readAll()));
+            } else {
+                log.appendAll(0, current.getBlocks().toArray(new Block[0]));
+            }
+            blockLog = log;
+            return loaded;
+        }
+    }
+
+    /**
+     * Gets the store block bodies are moved to.
+     *
+     * @return The store, or null if bodies are kept on the heap
+     */
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Moves the data of every block on the chain to a body store, and from then
+     * on the data of every block added, corrupted, repaired or loaded. Blocks keep
+     * their hashes, so validation, status and getLatestBlock do not read the store;
+     * getData and toString read bodies back as needed.
+     *
+     * A store reading from a block log must be on the log this chain is open on.
+     * The blocks already on the chain then only note where their records are,
+     * with no hashing and nothing written, so setting it on a reopened chain is
+     * cheap. Their records must hold their data, i.e. they must not have been
+     * changed in place.
+     *
+     * @param store The body store
+     * @throws IllegalArgumentException if the store reads from a log the chain is not open on
+     */
+    public void setBodyStore(BodyStore store) {
+        synchronized (writeLock) {
+            if (bodyStore != null) {
+                throw new IllegalStateException("The chain already keeps its bodies in "
+                        + (bodyStore.getFile() != null ? bodyStore.getFile() : bodyStore.getBlockLog().getDirectory()));
+            }
+            if (store.getBlockLog() != null && store.getBlockLog() != blockLog) {
+                throw new IllegalArgumentException("The store reads from a block log the chain is not open on");
+            }
+            bodyStore = store;
+            ChainSnapshot chain = snapshot;
+            for (int i = 0; i < chain.getChainSize(); i++) {
+                storeBody(chain.getBlock(i), i, false);
+            }
+        }
+    }
+
+    /**
+     * Moves a block's data out to the body store, if there is one, once the
+     * block has been written to the log at its position. A store reading from
+     * the log only needs to know where the block's record is.
+     *
+     * @param recent true for a block just added or changed, whose body is cached
+     */
+    private void storeBody(Block block, int position, boolean recent) {
+        BodyStore store = bodyStore;
+        if (store == null) {
+            return;
+        }
+        if (store.getBlockLog() != null) {
+            block.keepBody(store, blockLog.locationOf(position), recent);
+        } else {
+            block.storeBody(store);
+        }
+    }
+
+    /**
+     * Estimates the heap taken by the chain's blocks and cached bodies. The
+     * snapshot keeps the totals as blocks come and go, so this takes the same
+     * time however long the chain is, and it never reads the body store.
+     *
+     * @return The estimated bytes
+     */
+    public long getHeapBytes() {
+        ChainSnapshot chain = snapshot;
+        BodyStore store = bodyStore;
+        return chain.getHeaderBytes() + (store != null ? store.getCachedBytes() : chain.getDataBytes());
+    }
+
+    /**
+     * Writes the chain in the compact binary form (see CompactChainFormat), which
+     * leaves out every hash and is a fraction of the size of toString().
+     *
+     * @param out The stream to write to; it is not closed
+     * @throws IOException if the stream fails
+     */
+    public void exportCompact(OutputStream out) throws IOException {
+        CompactChainFormat.write(snapshot, out);
+    }
+
+    /**
+     * Writes the chain in the same JSON form as toString(), one block at a time,
+     * so the whole chain is never held as one String.
+     *
+     * @param out The writer to write to; it is not closed
+     * @throws IOException if the writer fails
+     */
+    public void writeJson(Writer out) throws IOException {
+        writeJson(snapshot, out);
+    }
+
+    /**
+     * Brings a file holding the chain's JSON form (see writeJson) up to date, e.g.
+     * to send it from disk. The file is only rewritten when the chain has changed
+     * since it was last exported there; a new version is written next to it and
+     * moved over it, so a reader that already has the old file open keeps reading
+     * the old chain whole. Exports wait only for each other, not for mining or
+     * calibration.
+     *
+     * @param file The file to keep the chain in
+     * @throws IOException if the file cannot be written
+     */
+    public void exportJson(Path file) throws IOException {
+        synchronized (exportLock) {
+            ChainSnapshot chain = snapshot;
+            if (chain == exported && file.equals(exportedFile) && Files.exists(file)) {
+                return;
+            }
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                writeJson(chain, out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            exported = chain;
+            exportedFile = file;
+        }
+    }
+
+    /**
+     * Loads a chain written by exportCompact into this chain, which must be empty.
+     * The hashes are recomputed while reading, in parallel; the blocks are not
+     * validated until isChainValid is called. If the chain is open on a block
+     * log, the blocks are written to it as well.
+     *
+     * @param in The stream to read; it is read to the end but not closed
+     * @return The number of blocks loaded
+     * @throws IOException if the stream fails or does not hold a compact chain
+     */
+    public int importCompact(InputStream in) throws IOException {
+        Block[] blocks = CompactChainFormat.read(in);
+        synchronized (writeLock) {
+            if (snapshot.getChainSize() > 0) {
+                throw new IllegalStateException("Blocks can only be imported into an empty chain");
+            }
+            if (blockLog != null) {
+                blockLog.appendAll(0, blocks);
+            }
+            load(ChainSnapshot.of(blocks));
+            return blocks.length;
+        }
+    }
+
+    /**
+     * Replaces the whole chain with one read from a JSON dump written by toString(),
+     * e.g. to seed a replica without mining. The dump is parsed and hashed in
+     * parallel as it is read (see JsonChainFormat), with this chain's hash
+     * algorithm, and every block's proof of work and link to the block before it
+     * are checked across cores. Only a dump that passes is swapped in, in one step:
+     * readers see the old chain or the new one, and blocks being mined meanwhile
+     * are linked to the new tail. If the chain is open on a block log, the new
+     * blocks are written to it first; a log cannot shrink, so the dump must hold
+     * at least as many blocks as the log. A dump that plainly holds fewer is
+     * refused before it is parsed.
+     *
+     * @param dump The dump
+     * @return The number of blocks imported
+     * @throws IOException if the stream fails, or the dump is not a valid, non-empty chain
+     */
+    public int importJson(String dump) throws IOException {
+        BlockLog log = blockLog;
+        if (log != null) {
+            // Refuse a dump too short for the log before spending any time parsing and validating it
+            int most = JsonChainFormat.maxBlocks(dump);
+            if (most < log.size()) {
+                throw new IllegalStateException("The log in " + log.getDirectory() + " holds " + log.size()
+                        + " blocks, more than the dump's " + most);
+            }
+        }
+        return importJson(new StringReader(dump));
+    }
+
+    /**
+     * Replaces the whole chain with one read from a JSON dump streamed in (see
+     * importJson(String)). A dump shorter than the chain's block log is only
+     * refused once it has been read, parsed and validated.
+     *
+     * @param in The dump; it is read to the end but not closed
+     * @return The number of blocks imported
+     * @throws IOException if the stream fails, or the dump is not a valid, non-empty chain
+     */
+    public int importJson(Reader in) throws IOException {
+        Block[] blocks = JsonChainFormat.read(in, hashAlgorithm);
+        if (blocks.length == 0) {
+            throw new IOException("The dump holds no blocks");
+        }
+        ChainSnapshot imported = ChainSnapshot.of(blocks);
+        int failing = imported.firstInvalidBlock(0, parallelValidation);
+        if (failing < blocks.length) {
+            throw new IOException("The dump is not a valid chain: " + imported.validationError(failing));
+        }
+        imported.raiseVerifiedUpTo(blocks.length);
+        synchronized (writeLock) {
+            if (blockLog != null) {
+                if (blocks.length < blockLog.size()) {
+                    throw new IllegalStateException("The log in " + blockLog.getDirectory() + " holds "
+                            + blockLog.size() + " blocks, more than the dump's " + blocks.length);
+                }
+                blockLog.appendAll(0, blocks);
+            }
+            for (Block old : snapshot.getBlocks()) {
+                old.attach(null, 0);
+            }
+            load(imported);
+            return blocks.length;
+        }
+    }
+
+    /**
+     * Makes loaded blocks the chain, in place of any blocks it had. The caller
+     * holds the write lock. The blocks' hashes are added to the lookup map on
+     * the first miss.
+     */
+    private void load(ChainSnapshot chain) {
+        for (int i = 0; i < chain.getChainSize(); i++) {
+            Block block = chain.getBlock(i);
+            block.attach(this, i);
+            storeBody(block, i, false);
+        }
+        synchronized (positionsByHash) {
+            positionsByHash.clear();
+            changedPositions.clear();
+            unindexedBlocks = chain.getChainSize();
+            snapshot = chain;
+        }
+    }
+
     /**
      * Adds a new Block to the BlockChain.
+     * If a retargeting policy is set, it overrides the block's difficulty.
      *
      * @param newBlock The Block to be added to the chain.
      */
     public void addBlock(Block newBlock) {
-        if (!blocks.isEmpty()) {
-            Block latestBlock = getLatestBlock();
-            newBlock.setPreviousHash(latestBlock.calculateHash());
+        addBlock(newBlock, null);
+    }
+
+    /**
+     * Mines and adds a block on a background thread. Blocks added this way are
+     * mined one at a time, in the order they were submitted, and each is linked
+     * to the chain as it stands when its mining starts.
+     *
+     * @param newBlock The Block to be added to the chain
+     * @return A task that completes with the block once it is on the chain
+     */
+    public MiningTask addBlockAsync(Block newBlock) {
+        return addBlockAsync(newBlock, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mines and adds a block on a background thread, giving up if it is not on
+     * the chain within the timeout. A block that times out or is cancelled is not added.
+     *
+     * @param newBlock The Block to be added to the chain
+     * @param timeout How long to allow from now, including time queued; 0 for no limit
+     * @param unit The unit of timeout
+     * @return A task that completes with the block once it is on the chain
+     */
+    public MiningTask addBlockAsync(Block newBlock, long timeout, TimeUnit unit) {
+        MiningTask task = new MiningTask(newBlock, hashesPerSecond, unit.toNanos(timeout));
+        miner().execute(() -> {
+            if (!task.begin()) {
+                return;
+            }
+            try {
+                addBlock(newBlock, task);
+                task.complete();
+            } catch (CancellationException e) {
+                // The task already completed as cancelled or timed out
+            } catch (RuntimeException e) {
+                task.fail(e);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Gets the thread that mines blocks for addBlockAsync, starting it on first use.
+     */
+    private synchronized ExecutorService miner() {
+        if (miner == null) {
+            miner = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "block-miner");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return miner;
+    }
+
+    /**
+     * Gets the hash rate a retarget works from. A policy with no mined blocks yet
+     * goes by the rate alone, which is 0 until calibration finishes, so the first
+     * retarget after startup waits for calibration (a cached rate makes that
+     * quick) rather than mining at the smallest difficulty. Waiting happens
+     * before mining starts, so the two never compete.
+     */
+    private int retargetRate(RetargetPolicy policy) {
+        int rate = hashesPerSecond;
+        if (rate == 0 && !policy.hasHistory()) {
+            try {
+                rate = calibrate().join();
+            } catch (CompletionException | CancellationException e) {
+                // Calibration failed; the policy falls back to its smallest difficulty
+                rate = hashesPerSecond;
+            }
+        }
+        return rate;
+    }
+
+    /**
+     * Mines and adds a block, reporting to a task if there is one.
+     * The block is mined against the latest block without holding the write lock,
+     * so readers and writers carry on meanwhile. It is only appended if that block
+     * is still the latest one; otherwise it is linked to the new latest block and
+     * mined again.
+     */
+    private void addBlock(Block newBlock, MiningTask task) {
+        newBlock.setHashAlgorithm(hashAlgorithm);
+        newBlock.setHeaderVersion(headerVersion);
+        RetargetPolicy policy = retargetPolicy;
+        if (policy != null) {
+            newBlock.setDifficultyUnit(DifficultyUnit.BITS);
+            newBlock.setDifficulty(policy.nextZeroBits(retargetRate(policy)));
+        }
+        MiningCheckpoint checkpoint = this.checkpoint;
+        long startTime = System.currentTimeMillis();
+        while (true) {
+            Block latestBlock = snapshot.getLatestBlock();
+            if (latestBlock != null) {
+                newBlock.linkTo(latestBlock);
+            }
+            if (checkpoint != null) {
+                checkpoint.resume(newBlock);
+            }
+            newBlock.proofOfWork(miningThreads, hashEngine, task, checkpoint);
+            synchronized (writeLock) {
+                ChainSnapshot current = snapshot;
+                if (current.getLatestBlock() != latestBlock
+                        || (latestBlock != null && !newBlock.linksTo(latestBlock))) {
+                    // The tail was appended to, corrupted or repaired while mining
+                    continue;
+                }
+                if (task != null && !task.beginAppend()) {
+                    throw new CancellationException("Mining cancelled");
+                }
+                if (policy != null) {
+                    policy.record(newBlock.getRequiredZeroBits(), System.currentTimeMillis() - startTime);
+                }
+                if (blockLog != null) {
+                    blockLog.append(current.getChainSize(), newBlock);
+                }
+                storeBody(newBlock, current.getChainSize(), true);
+                newBlock.attach(this, current.getChainSize());
+                positionsByHash.put(hashKey(newBlock.hashBytes()), current.getChainSize());
+                snapshot = current.append(newBlock);
+            }
+            if (checkpoint != null) {
+                checkpoint.clear();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Replaces the data of a block on the chain, e.g. to corrupt it deliberately.
+     * The block is copied and the copy changed, so readers holding an earlier
+     * snapshot keep seeing the old block.
+     *
+     * @param i The position of the block
+     * @param data The new transaction data
+     * @return true if the block was replaced, false if i is out of bounds
+     */
+    public boolean setBlockData(int i, String data) {
+        synchronized (writeLock) {
+            ChainSnapshot current = snapshot;
+            Block old = current.getBlock(i);
+            if (old == null) {
+                return false;
+            }
+            Block block = old.copy();
+            block.setData(data);
+            if (blockLog != null) {
+                blockLog.append(i, block);
+            }
+            storeBody(block, i, true);
+            block.attach(this, i);
+            positionsByHash.put(hashKey(block.hashBytes()), i);
+            snapshot = current.replace(i, block);
+            old.attach(null, 0);
+            unindex(old, block, i);
+            return true;
         }
-        newBlock.proofOfWork();
-        blocks.add(newBlock);
-        chainHash = newBlock.calculateHash();
     }
 
     /**
@@ -113,16 +868,24 @@ public class BlockChain {
      */
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[\n");
-        for (Block block : blocks) {
-            sb.append(block.toString()).append(",\n");
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(snapshot, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        if (!blocks.isEmpty()) {
-            sb.setLength(sb.length() - 2);
+        return out.toString();
+    }
+
+    private static void writeJson(ChainSnapshot chain, Writer out) throws IOException {
+        out.write("[\n");
+        for (int i = 0; i < chain.getChainSize(); i++) {
+            if (i > 0) {
+                out.write(",\n");
+            }
+            out.write(chain.getBlock(i).toString());
         }
-        sb.append("\n]");
-        return sb.toString();
+        out.write("\n]");
     }
 
     /**
@@ -132,55 +895,155 @@ public class BlockChain {
      * @return The Block at position i, or null if i is out of bounds.
      */
     public Block getBlock(int i) {
-        return (i >= 0 && i < blocks.size()) ? blocks.get(i) : null;
+        return snapshot.getBlock(i);
     }
 
     /**
-     * Computes the total difficulty of all Blocks on the chain.
+     * Finds the Block with the given hash, e.g. to walk back along previous hashes.
+     * This is a map lookup, not a scan of the chain.
+     *
+     * @param hash The block's hash in hexadecimal
+     * @return The Block on the chain with that hash, or null if there is none
+     */
+    public Block getBlockByHash(String hash) {
+        byte[] bytes = HeaderHasher.fromHex(hash);
+        if (bytes == null || bytes.length < Long.BYTES) {
+            return null;
+        }
+        ChainSnapshot chain = snapshot;
+        Block block = findByHash(chain, bytes);
+        if (block == null && (!changedPositions.isEmpty() || unindexedBlocks > 0)) {
+            indexChangedBlocks();
+            block = findByHash(chain, bytes);
+        }
+        return block;
+    }
+
+    /**
+     * Looks a hash up in the map and checks it against the snapshot.
+     */
+    private Block findByHash(ChainSnapshot chain, byte[] hash) {
+        Integer position = positionsByHash.get(hashKey(hash));
+        Block block = position != null ? chain.getBlock(position) : null;
+        return block != null && Arrays.equals(block.hashBytes(), hash) ? block : null;
+    }
+
+    /**
+     * Adds the current hashes of blocks changed in place to the map. Their old
+     * hashes stay mapped, but no longer match, so lookups of them find nothing.
+     * Blocks read from the block log are hashed and added on the first miss,
+     * rather than while opening.
+     */
+    private void indexChangedBlocks() {
+        if (unindexedBlocks > 0) {
+            synchronized (positionsByHash) {
+                ChainSnapshot chain = snapshot;
+                for (int i = 0; i < unindexedBlocks && i < chain.getChainSize(); i++) {
+                    positionsByHash.put(hashKey(chain.getBlock(i).hashBytes()), i);
+                }
+                unindexedBlocks = 0;
+            }
+        }
+        for (Integer position : changedPositions) {
+            changedPositions.remove(position);
+            Block block = snapshot.getBlock(position);
+            if (block != null) {
+                positionsByHash.put(hashKey(block.hashBytes()), position);
+            }
+        }
+    }
+
+    /**
+     * Removes a replaced block's hash from the map, unless its replacement has the same hash.
+     */
+    private void unindex(Block old, Block replacement, int position) {
+        if (!Arrays.equals(old.hashBytes(), replacement.hashBytes())) {
+            positionsByHash.remove(hashKey(old.hashBytes()), position);
+        }
+    }
+
+    /**
+     * Makes the map key for a hash from its last 8 bytes. The leading bytes of a
+     * mined hash are mostly zeros, the trailing ones are as good as random.
+     */
+    private static long hashKey(byte[] hash) {
+        long key = 0;
+        for (int i = hash.length - Long.BYTES; i < hash.length; i++) {
+            key = key << 8 | (hash[i] & 0xff);
+        }
+        return key;
+    }
+
+    /**
+     * Gets the total difficulty of all Blocks on the chain.
+     * Each block contributes its difficulty number in its own unit.
+     * The total is kept up to date as blocks are added or their difficulty
+     * changes, so this does not walk the chain.
      *
      * @return The sum of difficulties of all Blocks.
      */
     public int getTotalDifficulty() {
-        return blocks.stream().mapToInt(Block::getDifficulty).sum();
+        return snapshot.getTotalDifficulty();
+    }
+
+    /**
+     * Gets the average difficulty number of the Blocks on the chain.
+     *
+     * @return The average difficulty, or 0 for an empty chain.
+     */
+    public double getAverageDifficulty() {
+        return snapshot.getAverageDifficulty();
     }
 
     /**
      * Computes the expected number of hashes required for the entire chain.
+     * A block needing n leading zero bits is expected to take 2^n hashes.
+     * The chain keeps a count of blocks per number of zero bits, so the cost
+     * depends on the number of distinct difficulties, not on the chain length.
      *
      * @return The total expected number of hashes for all Blocks.
      */
     public double getTotalExpectedHashes() {
-        return blocks.stream().mapToDouble(b -> Math.pow(16, b.getDifficulty())).sum();
+        return snapshot.getTotalExpectedHashes();
+    }
+
+    /**
+     * Updates the running totals after a block on the chain changed its difficulty in place.
+     *
+     * @param block A block on the chain, already changed
+     * @param oldDifficulty Its difficulty number before the change
+     * @param oldZeroBits Its required zero bits before the change
+     */
+    void difficultyChanged(Block block, int oldDifficulty, int oldZeroBits) {
+        synchronized (writeLock) {
+            snapshot = snapshot.difficultyChanged(block, oldDifficulty, oldZeroBits);
+        }
     }
 
     /**
      * Validates the entire BlockChain.
+     * Blocks below the verified watermark passed an earlier validation and have
+     * not changed since, so only the blocks from the watermark on are checked:
+     * validating an unchanged chain is O(1), and after an append only the new
+     * block is checked. Long runs of blocks are checked in parallel (see
+     * setParallelValidation), reporting the same lowest failing block.
+     * The check runs on one snapshot, so it is not disturbed by concurrent changes.
      *
      * @return "TRUE" if the chain is valid, otherwise a String with an error message.
      */
     public String isChainValid() {
-        if (blocks.isEmpty()) {
+        ChainSnapshot chain = snapshot;
+        if (chain.getChainSize() == 0) {
             return "TRUE";
         }
 
-        for (int i = 0; i < blocks.size(); i++) {
-            Block currentBlock = blocks.get(i);
-            String blockHash = currentBlock.calculateHash();
-
-            if (!blockHash.substring(0, currentBlock.getDifficulty()).equals("0".repeat(currentBlock.getDifficulty()))) {
-                return "Error: Invalid proof of work in block " + i;
-            }
-
-            if (i > 0) {
-                Block previousBlock = blocks.get(i - 1);
-                if (!currentBlock.getPreviousHash().equals(previousBlock.calculateHash())) {
-                    return "Chain Validation : FALSE " +
-                            "Error: Invalid hash chain at block " + i;
-                }
-            }
+        int failing = chain.firstInvalidBlock(chain.getVerifiedUpTo(), parallelValidation);
+        chain.raiseVerifiedUpTo(failing);
+        if (failing < chain.getChainSize()) {
+            return chain.validationError(failing);
         }
 
-        if (!chainHash.equals(getLatestBlock().calculateHash())) {
+        if (!chain.getChainHash().equals(chain.getLatestBlock().calculateHash())) {
             return "Chain Validation : FALSE" +
                     "Error: Invalid chain hash";
         }
@@ -189,44 +1052,86 @@ public class BlockChain {
     }
 
     /**
-     * Repairs the chain by recomputing hashes and proof of work where necessary.
+     * Lowers the verified watermark when a block on the chain changes. The
+     * block's own checks and its successor's link to it have to be redone,
+     * and its new hash has to be added to the lookup map.
+     *
+     * @param position The position of the changed block
      */
-    public void repairChain() {
-        for (int i = 0; i < blocks.size(); i++) {
-            Block currentBlock = blocks.get(i);
-            if (i > 0) {
-                Block previousBlock = blocks.get(i - 1);
-                currentBlock.setPreviousHash(previousBlock.calculateHash());
-            }
-            currentBlock.proofOfWork();
-        }
-        chainHash = getLatestBlock().calculateHash();
+    void blockChanged(int position) {
+        snapshot.lowerVerifiedUpTo(position);
+        changedPositions.add(position);
+        exported = null;
     }
 
     /**
-     * Simulates a hash calculation for performance testing purposes.
-     * This method doesn't actually calculate a hash, but instead performs
-     * a simple string manipulation to simulate computational work.
+     * Repairs the chain by recomputing hashes and proof of work where necessary.
+     * Blocks before the first invalid block are left untouched. From there on each
+     * block is linked to its (possibly re-mined) predecessor and mined again only if
+     * its proof of work no longer holds, so the cost is proportional to the damaged
+     * suffix of the chain.
+     *
+     * The blocks that need changing are copied and the copies repaired, then all
+     * of them are published at once, so readers see the chain either before or
+     * after the repair. Other writers wait until the repair is done.
      *
-     * @param input The string to be "hashed" (not actually used in this simulation)
-     * @return A fixed string, simulating a hash result
+     * @return A report of the blocks re-mined and the hashes spent
      */
-
-    private String simulateHashCalculation(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = md.digest(input.getBytes());
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
+    public RepairReport repairChain() {
+        synchronized (writeLock) {
+            ChainSnapshot current = snapshot;
+            int size = current.getChainSize();
+            if (size == 0) {
+                return new RepairReport(-1, 0, 0);
             }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            int first = current.firstInvalidBlock(current.getVerifiedUpTo(), parallelValidation);
+            if (first == size) {
+                snapshot = current.withCurrentChainHash();
+                return new RepairReport(-1, 0, 0);
+            }
+            int remined = 0;
+            long hashes = 0;
+            Block[] repaired = new Block[size - first];
+            for (int i = first; i < size; i++) {
+                Block currentBlock = current.getBlock(i);
+                Block previousBlock = i > first ? repaired[i - first - 1] : current.getBlock(i - 1);
+                boolean linked = previousBlock == null || currentBlock.linksTo(previousBlock);
+                if (!linked || !currentBlock.hasValidProofOfWork()) {
+                    currentBlock = currentBlock.copy();
+                    if (previousBlock != null) {
+                        currentBlock.linkTo(previousBlock);
+                    }
+                }
+                if (!currentBlock.hasValidProofOfWork()) {
+                    MiningTask task = new MiningTask(currentBlock, hashesPerSecond, 0);
+                    task.begin();
+                    currentBlock.proofOfWork(miningThreads, hashEngine, task, null);
+                    remined++;
+                    hashes += task.getAttempts();
+                }
+                repaired[i - first] = currentBlock;
+            }
+            for (int i = first; i < size; i++) {
+                if (current.getBlock(i) != repaired[i - first]) {
+                    if (blockLog != null) {
+                        blockLog.append(i, repaired[i - first]);
+                    }
+                    storeBody(repaired[i - first], i, true);
+                }
+                repaired[i - first].attach(this, i);
+                positionsByHash.put(hashKey(repaired[i - first].hashBytes()), i);
+            }
+            snapshot = current.replace(first, repaired).withCurrentChainHash();
+            for (int i = first; i < size; i++) {
+                if (current.getBlock(i) != repaired[i - first]) {
+                    current.getBlock(i).attach(null, 0);
+                    unindex(current.getBlock(i), repaired[i - first], i);
+                }
+            }
+            return new RepairReport(first, remined, hashes);
         }
     }
+
     public static void main(String[] args) {
 
 
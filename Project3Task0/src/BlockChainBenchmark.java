@@ -0,0 +1,665 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * This class benchmarks the proof of work hashing paths of the BlockChain.
+ * Before timing anything it runs BlockChainCheck's digest cross-checks (every hash
+ * engine against MessageDigest and Block.calculateHash()), and exits with status 1
+ * if any digest differs. Run BlockChainCheck on its own for just the checks.
+ * It then reports single-thread header hashes per second for each engine at a few
+ * transaction sizes, so an engine is only adopted if it clearly wins on the
+ * machine it will run on. Engines that cannot run in this JVM (VECTOR without
+ * --add-modules jdk.incubator.vector) are reported as falling back.
+ *
+ * The last section compares the hash algorithms a chain can be created with, on
+ * block sizes from a small payment to a full 64 KB block. It reports both the cost
+ * of validating a block (hashing the whole header, as isChainValid does) and the
+ * mining rate, where the header prefix is absorbed once and only the nonce changes.
+ *
+ * Next it compares the two header versions: mining hashes per second with each
+ * engine, and blocks per second for validating a block whose hash is not cached.
+ *
+ * It then times a cold full validation of a long chain on one thread and
+ * in parallel, after checking that both report the same failing block, and
+ * compares looking a block up by hash with scanning the same chain for it.
+ *
+ * It shows what starting a chain costs: the constructor, which no longer measures
+ * the hash rate, a calibration on the mining path, and a warm start whose rate comes
+ * from a HashRateCache.
+ *
+ * It then writes a million blocks to a BlockLog, compares the cost of appends
+ * synced one at a time, in batches and only at close, and times reopening the
+ * chain from the log.
+ *
+ * It compares the compact export format with the toString() JSON: bytes per block,
+ * and blocks per second to load, where loading the compact form recomputes every
+ * hash and loading the JSON parses every block and hashes it.
+ *
+ * It compares a chain holding its blocks' data on the heap with one keeping only
+ * headers there and the data in a BodyStore: heap per block, measured and as
+ * getHeapBytes estimates it, checks that validation and status read nothing from
+ * the store, and times reads of recent and older blocks' data through the cache.
+ *
+ * It times importJson on a dump of IMPORTED_BLOCKS blocks: reading, parsing and
+ * hashing them in parallel, checking every proof of work and link, and swapping
+ * the chain in.
+ *
+ * It sends a DOWNLOADED_BLOCKS block chain over a loopback socket as a download
+ * would be sent: as the toString() String, and from the file exportJson keeps,
+ * with FileChannel.transferTo, first writing the file and then with it up to date.
+ * For each it reports the time and the bytes the sending thread allocated.
+ *
+ * Finally it measures the heap used per block, for blocks as they sit on a
+ * chain: 64 bytes of data, a previous hash and a cached hash of their own.
+ * Run it with a fixed heap (e.g. -Xms1g -Xmx1g) for a steadier figure.
+ */
+public class BlockChainBenchmark {
+    private static final int[] DATA_SIZES = {16, 256, 4096};
+    private static final int HASHES_PER_RUN = 1_000_000;
+    private static final int[] BLOCK_SIZES = {256, 4096, 65536};
+    private static final long BYTES_PER_RUN = 256L * 1024 * 1024;
+    private static final int CHAIN_LENGTH = 20_000;
+    private static final int LOGGED_BLOCKS = 1_000_000;
+    private static final int EXPORTED_BLOCKS = 100_000;
+    private static final int TIERED_BLOCKS = 100_000;
+    private static final long BODY_CACHE_BYTES = 4L << 20;
+    private static final int IMPORTED_BLOCKS = 100_000;
+    private static final int DOWNLOADED_BLOCKS = 100_000;
+
+    /**
+     * Runs the cross-checks and the benchmarks.
+     *
+     * @param args Command line arguments (unused)
+     */
+    public static void main(String[] args) throws Exception {
+        BlockChainCheck.crossCheckSha256();
+        BlockChainCheck.crossCheckEngines();
+        System.out.println("Cross-checks passed");
+
+        System.out.println("\nHeader hashes per second (single thread)");
+        for (int size : DATA_SIZES) {
+            Block block = sampleBlock(size, new Random(size));
+            for (HashEngine engine : HashEngine.values()) {
+                System.out.printf("data %5d bytes  %-8s %,12d%s%n", size, engine, hashesPerSecond(block, engine),
+                        engine.isAvailable() ? "" : "  (not available, fell back to JDK)");
+            }
+        }
+
+        System.out.println("\nHash algorithms (single thread): validation MB/s and blocks/s, mining hashes/s");
+        for (int size : BLOCK_SIZES) {
+            Block block = sampleBlock(size, new Random(size));
+            for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+                block.setHashAlgorithm(algorithm);
+                double blocksPerSecond = validationsPerSecond(block);
+                System.out.printf("block %6d bytes  %-12s %10.1f MB/s %,12.0f blocks/s %,12d hashes/s%n",
+                        size, algorithm.getId(), blocksPerSecond * size / (1024 * 1024), blocksPerSecond,
+                        hashesPerSecond(block, HashEngine.JDK));
+            }
+        }
+
+        System.out.println("\nHeader versions (single thread): mining hashes/s per engine, cold validations/s");
+        for (int size : DATA_SIZES) {
+            for (int version : new int[]{Block.HEADER_V1, Block.HEADER_V2}) {
+                Block block = sampleBlock(size, new Random(size), version);
+                System.out.printf("data %5d bytes  v%d  JDK %,11d  IN_TREE %,11d  validate %,11.0f%n", size, version,
+                        hashesPerSecond(block, HashEngine.JDK), hashesPerSecond(block, HashEngine.IN_TREE),
+                        coldValidationsPerSecond(block));
+            }
+        }
+
+        BlockChain chain = longChain();
+        crossCheckParallelValidation(chain);
+        System.out.printf("%nCold validation of %,d blocks (%d cores)%n", CHAIN_LENGTH,
+                Runtime.getRuntime().availableProcessors());
+        for (boolean parallel : new boolean[]{false, true}) {
+            chain.setParallelValidation(parallel);
+            System.out.printf("%-8s %,10.0f blocks/s%n", parallel ? "parallel" : "serial", blocksValidatedPerSecond(chain));
+        }
+        reportLookups(chain);
+        chain = null;
+
+        reportStartup();
+        reportBlockLog();
+        reportCompactFormat();
+        reportBodyStore();
+        reportJsonImport();
+        reportDownload();
+
+        System.out.printf("%nHeap per block (64 byte data): %d bytes%n", BlockChainCheck.bytesPerBlock());
+    }
+
+    /**
+     * Times finding random blocks by hash, through the chain's map and by a linear scan.
+     */
+    private static void reportLookups(BlockChain chain) {
+        Random random = new Random(11);
+        String[] hashes = new String[1000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = chain.getBlock(random.nextInt(CHAIN_LENGTH)).calculateHash();
+        }
+        long mapNanos = 0;
+        long scanNanos = 0;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            for (String hash : hashes) {
+                if (chain.getBlockByHash(hash) == null) {
+                    fail("block not found by hash");
+                }
+            }
+            mapNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String hash : hashes) {
+                int i = 0;
+                while (!chain.getBlock(i).calculateHash().equals(hash)) {
+                    i++;
+                }
+            }
+            scanNanos = System.nanoTime() - start;
+        }
+        System.out.printf("Lookup by hash: map %,.0f ns, linear scan %,.0f ns%n",
+                (double) mapNanos / hashes.length, (double) scanNanos / hashes.length);
+    }
+
+    /**
+     * Times creating a chain, calibrating it, and a warm start from a saved rate.
+     */
+    private static void reportStartup() throws Exception {
+        Path file = Files.createTempDirectory("hashrate").resolve("hashrate.properties");
+        long start = System.nanoTime();
+        BlockChain cold = new BlockChain();
+        long constructed = System.nanoTime() - start;
+        cold.setHashRateCache(new HashRateCache(file));
+        start = System.nanoTime();
+        int rate = cold.calibrate().get();
+        long calibrated = System.nanoTime() - start;
+
+        BlockChain warm = new BlockChain();
+        warm.setHashRateCache(new HashRateCache(file));
+        start = System.nanoTime();
+        int warmRate = warm.calibrate().get();
+        long warmStart = System.nanoTime() - start;
+        System.out.printf("%nStartup (%d mining threads): constructor %.1f ms, calibration %,d hashes/s in %d ms, "
+                        + "warm start %,d hashes/s in %.1f ms%n", cold.getMiningThreads(), constructed / 1e6, rate,
+                calibrated / 1_000_000, warmRate, warmStart / 1e6);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.getParent());
+    }
+
+    /**
+     * Times appending to a BlockLog with different sync batches, and reopening a
+     * chain of LOGGED_BLOCKS blocks from one.
+     */
+    private static void reportBlockLog() throws Exception {
+        Random random = new Random(5);
+        Block[] samples = new Block[256];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = sampleBlock(64, random, Block.HEADER_V2);
+        }
+
+        System.out.printf("%nBlock log appends (64 byte data)%n");
+        int[][] runs = {{1, 2_000}, {100, 200_000}, {0, LOGGED_BLOCKS}};
+        Path reopened = null;
+        for (int[] run : runs) {
+            Path directory = Files.createTempDirectory("blocklog");
+            BlockLog log = BlockLog.open(directory, run[0], BlockLog.DEFAULT_SEGMENT_SIZE);
+            long start = System.nanoTime();
+            for (int i = 0; i < run[1]; i++) {
+                log.append(i, samples[i % samples.length]);
+            }
+            log.close();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-16s %,12.0f blocks/s, %d bytes per block%n",
+                    run[0] == 0 ? "sync at close" : "sync every " + run[0],
+                    run[1] * 1e9 / elapsed, log.getLogBytes() / run[1]);
+            if (run[1] == LOGGED_BLOCKS) {
+                reopened = directory;
+            } else {
+                deleteDirectory(directory);
+            }
+        }
+
+        long start = System.nanoTime();
+        BlockChain chain = new BlockChain();
+        int loaded = chain.open(BlockLog.open(reopened));
+        long elapsed = System.nanoTime() - start;
+        if (loaded != LOGGED_BLOCKS || !chain.getBlock(LOGGED_BLOCKS - 1).toString()
+                .equals(samples[(LOGGED_BLOCKS - 1) % samples.length].toString())) {
+            fail("block log did not reopen with the blocks written");
+        }
+        System.out.printf("Reopen %,d blocks from the log: %.0f ms%n", loaded, elapsed / 1e6);
+        deleteDirectory(reopened);
+    }
+
+    /**
+     * Compares the size and load speed of the compact format with the JSON dump
+     * for a linked chain of EXPORTED_BLOCKS blocks with 64 byte data.
+     */
+    private static void reportCompactFormat() throws Exception {
+        Random random = new Random(9);
+        Block[] blocks = new Block[EXPORTED_BLOCKS];
+        for (int i = 0; i < blocks.length; i++) {
+            Block block = sampleBlock(64, random, Block.HEADER_V2);
+            block.setIndex(i);
+            block.setTimestamp(new Timestamp(1730000000000L + i * 60_000L + random.nextInt(30_000)));
+            if (i > 0) {
+                block.linkTo(blocks[i - 1]);
+            }
+            blocks[i] = block;
+        }
+        BlockChain chain = new BlockChain();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chain.importCompact(new ByteArrayInputStream(compact(blocks)));
+        chain.exportCompact(out);
+        byte[] compact = out.toByteArray();
+        String json = chain.toString();
+
+        double compactRate = 0;
+        double jsonRate = 0;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            BlockChain loaded = new BlockChain();
+            loaded.importCompact(new ByteArrayInputStream(compact));
+            compactRate = EXPORTED_BLOCKS * 1e9 / (System.nanoTime() - start);
+            if (!loaded.getChainHash().equals(chain.getChainHash())) {
+                fail("compact format did not load the chain written");
+            }
+
+            start = System.nanoTime();
+            int count = 0;
+            for (String text : splitBlocks(json)) {
+                Block block = Block.parse(text);
+                block.calculateHash();
+                count++;
+            }
+            jsonRate = count * 1e9 / (System.nanoTime() - start);
+        }
+        System.out.printf("%nExport of %,d blocks (64 byte data)%n", EXPORTED_BLOCKS);
+        System.out.printf("%-8s %6.1f bytes/block, load %,10.0f blocks/s%n", "JSON",
+                (double) json.getBytes(StandardCharsets.UTF_8).length / EXPORTED_BLOCKS, jsonRate);
+        System.out.printf("%-8s %6.1f bytes/block, load %,10.0f blocks/s (hashes recomputed)%n", "compact",
+                (double) compact.length / EXPORTED_BLOCKS, compactRate);
+    }
+
+    /**
+     * Compares heap use with and without a body store for TIERED_BLOCKS blocks with
+     * 1 KB data, then reads data the way a viewer would: mostly the latest thousand
+     * blocks, sometimes any block.
+     */
+    private static void reportBodyStore() throws Exception {
+        Random random = new Random(11);
+        byte[] compact = compact(minedBlocks(TIERED_BLOCKS, 1024, random));
+
+        System.out.printf("%nBlock bodies, %,d blocks (1024 byte data, %d MB body cache)%n", TIERED_BLOCKS,
+                BODY_CACHE_BYTES >> 20);
+        Path file = Files.createTempFile("bodies", ".dat");
+        BlockChain tiered = null;
+        for (boolean store : new boolean[]{false, true}) {
+            long before = BlockChainCheck.usedHeap();
+            BlockChain chain = new BlockChain();
+            if (store) {
+                chain.setBodyStore(BodyStore.open(file, BODY_CACHE_BYTES));
+            }
+            chain.importCompact(new ByteArrayInputStream(compact));
+            long measured = (BlockChainCheck.usedHeap() - before) / TIERED_BLOCKS;
+            System.out.printf("%-12s %,6d bytes/block measured, %,6d estimated%n", store ? "body store" : "heap only",
+                    measured, chain.getHeapBytes() / TIERED_BLOCKS);
+            tiered = chain;
+        }
+
+        BodyStore bodies = tiered.getBodyStore();
+        long reads = bodies.getHits() + bodies.getMisses();
+        if (!tiered.isChainValid().equals("Chain Validation : TRUE") || tiered.getLatestBlock().getNonce() == null
+                || tiered.snapshot().getTotalExpectedHashes() <= 0 || bodies.getHits() + bodies.getMisses() != reads) {
+            fail("validation or status read block bodies");
+        }
+        System.out.println("Body reads for validation and status: 0");
+
+        int views = 200_000;
+        long start = System.nanoTime();
+        long length = 0;
+        for (int i = 0; i < views; i++) {
+            int position = random.nextInt(10) > 0
+                    ? TIERED_BLOCKS - 1 - random.nextInt(1000)
+                    : random.nextInt(TIERED_BLOCKS);
+            length += tiered.getBlock(position).getData().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (length != 1024L * views) {
+            fail("body store returned the wrong data");
+        }
+        System.out.printf("getData     %,12.0f reads/s, cache hit rate %.1f%%%n", views * 1e9 / elapsed,
+                bodies.getHitRate() * 100);
+        bodies.close();
+        Files.delete(file);
+    }
+
+    /**
+     * Times importing a toString() dump of IMPORTED_BLOCKS valid blocks with 64 byte
+     * data into a chain that already holds a block.
+     */
+    private static void reportJsonImport() throws Exception {
+        BlockChain source = new BlockChain();
+        source.importCompact(new ByteArrayInputStream(compact(minedBlocks(IMPORTED_BLOCKS, 64, new Random(13)))));
+        String dump = source.toString();
+
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            BlockChain chain = new BlockChain();
+            chain.addBlock(new Block(0, chain.getTime(), "Genesis", 1, DifficultyUnit.BITS));
+            long start = System.nanoTime();
+            int imported = chain.importJson(new StringReader(dump));
+            best = Math.min(best, System.nanoTime() - start);
+            if (imported != IMPORTED_BLOCKS || !chain.getChainHash().equals(source.getChainHash())
+                    || !chain.isChainValid().equals("Chain Validation : TRUE")) {
+                fail("importJson did not load the chain dumped");
+            }
+        }
+        System.out.printf("%nImport of a %,d block JSON dump (%.1f MB, %d cores): %.0f ms, %,.0f blocks/s%n",
+                IMPORTED_BLOCKS, dump.length() / 1e6, Runtime.getRuntime().availableProcessors(), best / 1e6,
+                IMPORTED_BLOCKS * 1e9 / best);
+    }
+
+    /**
+     * Sends a chain of DOWNLOADED_BLOCKS blocks with 64 byte data to a loopback
+     * socket that discards what it reads: as one String, as ServerTCP sent view,
+     * and from an exported file, as it sends a download.
+     */
+    private static void reportDownload() throws Exception {
+        BlockChain chain = new BlockChain();
+        chain.importCompact(new ByteArrayInputStream(compact(minedBlocks(DOWNLOADED_BLOCKS, 64, new Random(17)))));
+        Path file = Files.createTempFile("chain", ".json");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.printf("%nDownload of %,d blocks (64 byte data) over loopback%n", DOWNLOADED_BLOCKS);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            String[] ways = {"String", "file, written", "file, current"};
+            long expected = -1;
+            for (String way : ways) {
+                if (way.equals("file, written")) {
+                    Files.delete(file);
+                }
+                try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                     SocketChannel sender = server.accept()) {
+                    CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> drain(client));
+                    long allocated = threads.getCurrentThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    if (way.equals("String")) {
+                        ByteBuffer bytes = ByteBuffer.wrap(chain.toString().getBytes(StandardCharsets.UTF_8));
+                        while (bytes.hasRemaining()) {
+                            sender.write(bytes);
+                        }
+                    } else {
+                        chain.exportJson(file);
+                        try (FileChannel dump = FileChannel.open(file, StandardOpenOption.READ)) {
+                            long length = dump.size();
+                            for (long sent = 0; sent < length; ) {
+                                sent += dump.transferTo(sent, length - sent, sender);
+                            }
+                        }
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+                    sender.shutdownOutput();
+                    long length = received.join();
+                    if (expected >= 0 && length != expected) {
+                        fail("the exported file is not the chain's toString()");
+                    }
+                    expected = length;
+                    System.out.printf("%-14s %6.1f MB in %5.0f ms, %8.1f MB allocated%n", way, length / 1e6,
+                            elapsed / 1e6, allocated / 1e6);
+                }
+            }
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * Reads a channel to its end, discarding the bytes.
+     */
+    private static long drain(SocketChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        long total = 0;
+        try {
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                total += read;
+                buffer.clear();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return total;
+    }
+
+    /**
+     * Makes a valid chain of blocks with one-bit difficulty, each linked to the one before.
+     */
+    private static Block[] minedBlocks(int count, int dataSize, Random random) {
+        Block[] blocks = new Block[count];
+        for (int i = 0; i < blocks.length; i++) {
+            Block block = sampleBlock(dataSize, random, Block.HEADER_V2);
+            block.setIndex(i);
+            block.setDifficultyUnit(DifficultyUnit.BITS);
+            block.setDifficulty(1);
+            if (i > 0) {
+                block.linkTo(blocks[i - 1]);
+            }
+            block.proofOfWork(1);
+            blocks[i] = block;
+        }
+        return blocks;
+    }
+
+    private static byte[] compact(Block[] blocks) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactChainFormat.write(ChainSnapshot.of(blocks), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Splits a toString() dump into the text of each block.
+     */
+    private static List<String> splitBlocks(String json) {
+        List<String> blocks = new ArrayList<>();
+        int start = json.indexOf("{\"index\": ");
+        while (start >= 0) {
+            int next = json.indexOf("{\"index\": ", start + 1);
+            int end = next >= 0 ? json.lastIndexOf('}', next) : json.lastIndexOf('}');
+            blocks.add(json.substring(start, end + 1));
+            start = next;
+        }
+        return blocks;
+    }
+
+    private static void deleteDirectory(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Corrupts blocks of a long chain and checks that parallel and serial
+     * validation report the same error.
+     */
+    private static void crossCheckParallelValidation(BlockChain chain) {
+        Random random = new Random(11);
+        for (int run = 0; run < 20; run++) {
+            Block block = chain.getBlock(random.nextInt(CHAIN_LENGTH));
+            String data = block.getData();
+            long time = block.getTimestamp().getTime();
+            if (run % 2 == 0) {
+                block.setData(data + "!");
+            } else {
+                block.setTimestamp(new Timestamp(time + 1));
+            }
+            String[] results = new String[2];
+            for (int mode = 0; mode < 2; mode++) {
+                chain.setParallelValidation(mode == 1);
+                invalidateAll(chain);
+                results[mode] = chain.isChainValid();
+            }
+            if (!results[0].equals(results[1])) {
+                fail("parallel validation reported \"" + results[1] + "\" instead of \"" + results[0] + "\"");
+            }
+            block.setData(data);
+            block.setTimestamp(new Timestamp(time));
+        }
+    }
+
+    /**
+     * Times full validations of a chain whose block hashes are not cached.
+     */
+    private static double blocksValidatedPerSecond(BlockChain chain) {
+        long elapsed = 0;
+        for (int run = 0; run < 6; run++) {
+            invalidateAll(chain);
+            long start = System.nanoTime();
+            if (!chain.isChainValid().equals("Chain Validation : TRUE")) {
+                fail("benchmark chain is not valid");
+            }
+            // The first runs warm up the JIT
+            if (run >= 2) {
+                elapsed += System.nanoTime() - start;
+            }
+        }
+        return 4.0 * CHAIN_LENGTH * 1_000_000_000L / elapsed;
+    }
+
+    /**
+     * Builds a chain with one-bit difficulty, so it is quick to mine but every check still hashes.
+     */
+    private static BlockChain longChain() {
+        BlockChain chain = new BlockChain();
+        chain.setMiningThreads(1);
+        Random random = new Random(3);
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            Block block = new Block(i, new Timestamp(1730000000000L + i * 1000L),
+                    "payment " + random.nextInt(1_000_000), 1, DifficultyUnit.BITS);
+            chain.addBlock(block);
+        }
+        return chain;
+    }
+
+    /**
+     * Drops every cached block hash, as after a cold start.
+     */
+    private static void invalidateAll(BlockChain chain) {
+        for (int i = 0; i < chain.getChainSize(); i++) {
+            Block block = chain.getBlock(i);
+            block.setTimestamp(block.getTimestamp());
+        }
+    }
+
+    /**
+     * Times one engine searching a range of nonces that holds no winner,
+     * which is what the miner spends nearly all its time doing.
+     */
+    private static long hashesPerSecond(Block block, HashEngine engine) {
+        NonceHasher hasher = engine.hasherForCurrentThread();
+        hasher.reset(block);
+        AtomicLong bound = new AtomicLong(Long.MAX_VALUE);
+        // Warm up so the JIT has compiled the hot loop before timing
+        hasher.findInRange(1, HASHES_PER_RUN / 4, 64, bound);
+        long start = System.nanoTime();
+        hasher.findInRange(1, HASHES_PER_RUN, 64, bound);
+        long elapsed = System.nanoTime() - start;
+        return HASHES_PER_RUN * 1_000_000_000L / elapsed;
+    }
+
+    /**
+     * Times full header hashes of a block, the work isChainValid does per block.
+     */
+    private static double validationsPerSecond(Block block) {
+        int runs = (int) Math.max(1000, BYTES_PER_RUN / block.getData().length());
+        Timestamp timestamp = block.getTimestamp();
+        String expected = block.calculateHash();
+        // Warm up so the JIT has compiled the digest before timing
+        for (int i = 0; i < runs / 4; i++) {
+            block.setTimestamp(timestamp);
+            block.calculateHash();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            // Setting a field drops the cached hash, so every run hashes the whole header
+            block.setTimestamp(timestamp);
+            if (!block.calculateHash().equals(expected)) {
+                fail("calculateHash is not deterministic for " + block.getHashAlgorithm());
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return runs * 1_000_000_000.0 / elapsed;
+    }
+
+    /**
+     * Times hashing one block from scratch, as validating a block with no cached hash does.
+     */
+    private static double coldValidationsPerSecond(Block block) {
+        int runs = 200_000;
+        Timestamp timestamp = block.getTimestamp();
+        for (int i = 0; i < runs / 4; i++) {
+            block.setTimestamp(timestamp);
+            block.calculateHash();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            // Setting a field drops the cached hash
+            block.setTimestamp(timestamp);
+            block.calculateHash();
+        }
+        long elapsed = System.nanoTime() - start;
+        return runs * 1_000_000_000.0 / elapsed;
+    }
+
+    /**
+     * Builds a version 1 block with random transaction data of the given size and a random nonce.
+     */
+    private static Block sampleBlock(int dataSize, Random random) {
+        return sampleBlock(dataSize, random, Block.HEADER_V1);
+    }
+
+    /**
+     * Builds a block with the given header version, random transaction data of the
+     * given size and a random nonce.
+     */
+    private static Block sampleBlock(int dataSize, Random random, int version) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < dataSize; i++) {
+            data.append((char) ('a' + random.nextInt(26)));
+        }
+        Block block = new Block(random.nextInt(1000), new Timestamp(1730000000000L + random.nextInt(1_000_000)),
+                data.toString(), 2);
+        byte[] previous = new byte[32];
+        random.nextBytes(previous);
+        block.setPreviousHash(HeaderHasher.toHex(previous));
+        block.setHeaderVersion(version);
+        block.proofOfWork(1);
+        return block;
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: " + message);
+        System.exit(1);
+    }
+}
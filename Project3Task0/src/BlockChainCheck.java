@@ -0,0 +1,239 @@
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class checks the parts of the BlockChain that have to agree with a
+ * reference, not just run fast, and runs in a few seconds:
+ *
+ *   - the in-tree SHA-256 (Sha256) against MessageDigest, for every message length
+ *     up to a few input blocks;
+ *   - every hash engine against Block.calculateHash(), for both header versions,
+ *     and against each other when mining;
+ *   - the JDK and IN_TREE engines against each other nonce by nonce on version 2
+ *     headers, which each hash their own way: JDK with a cloned MessageDigest
+ *     midstate, IN_TREE with Sha256HeaderHasher;
+ *   - the heap a block with 64 bytes of data takes, measured, against
+ *     MAX_BYTES_PER_BLOCK and against what Block's estimate says;
+ *   - that the first retargeted block is sized from the calibrated hash rate
+ *     rather than falling back to the policy's smallest difficulty.
+ *
+ * It prints each check as it passes and exits with status 1 at the first failure.
+ * BlockChainBenchmark runs the digest checks too before timing anything.
+ */
+public class BlockChainCheck {
+    /** Blocks whose heap is measured. */
+    private static final int MEASURED_BLOCKS = 200_000;
+    /**
+     * Most heap a block with 64 bytes of data, a previous hash and its own hash may take.
+     * Blocks keep their fields as primitives and bytes (see Block), about 264 bytes.
+     */
+    private static final long MAX_BYTES_PER_BLOCK = 320;
+
+    /**
+     * Runs every check.
+     *
+     * @param args Command line arguments (unused)
+     */
+    public static void main(String[] args) throws Exception {
+        crossCheckSha256();
+        System.out.println("Sha256 matches MessageDigest");
+        crossCheckEngines();
+        System.out.println("Every engine matches calculateHash for header v1 and v2");
+        crossCheckJdkAndInTree();
+        System.out.println("JDK and IN_TREE agree on every v2 nonce");
+        checkBytesPerBlock();
+        checkFirstRetarget();
+        System.out.println("All checks passed");
+        System.exit(0);
+    }
+
+    /**
+     * Compares Sha256.digest with MessageDigest for every message length across several blocks.
+     */
+    static void crossCheckSha256() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        Random random = new Random(42);
+        for (int length = 0; length <= 300; length++) {
+            byte[] message = new byte[length];
+            random.nextBytes(message);
+            if (!Arrays.equals(md.digest(message), Sha256.digest(message))) {
+                fail("Sha256.digest differs from MessageDigest for length " + length);
+            }
+        }
+    }
+
+    /**
+     * Compares every engine's header hashes with Block.calculateHash(), for both header versions.
+     */
+    static void crossCheckEngines() {
+        for (int version : new int[]{Block.HEADER_V1, Block.HEADER_V2}) {
+            crossCheckEngines(version);
+        }
+    }
+
+    private static void crossCheckEngines(int version) {
+        Random random = new Random(7);
+        for (int size = 0; size <= 200; size += 7) {
+            Block block = sampleBlock(size, random, version);
+            String expected = block.calculateHash();
+            for (HashEngine engine : HashEngine.values()) {
+                NonceHasher hasher = engine.hasherForCurrentThread();
+                hasher.reset(block);
+                long last = Math.max(1200, block.getNonce().longValue());
+                for (long nonce = 0; nonce <= last; nonce++) {
+                    byte[] hash = hasher.hash(nonce);
+                    if (nonce == block.getNonce().longValue()
+                            && !HeaderHasher.toHex(hash).equals(expected)) {
+                        fail(engine + " differs from calculateHash for v" + version + " data size " + size);
+                    }
+                }
+            }
+            // Mine with each engine and make sure they agree on the nonce
+            String firstHash = null;
+            for (HashEngine engine : HashEngine.values()) {
+                Block copy = new Block(block.getIndex(), block.getTimestamp(), block.getData(), 2);
+                copy.setPreviousHash(block.getPreviousHash());
+                copy.setHeaderVersion(version);
+                String hash = copy.proofOfWork(1, engine);
+                if (!hash.equals(copy.calculateHash()) || (firstHash != null && !firstHash.equals(hash))) {
+                    fail(engine + " mined a different v" + version + " block for data size " + size);
+                }
+                firstHash = hash;
+            }
+        }
+    }
+
+    /**
+     * Compares the JDK and IN_TREE engines' digests for every nonce in a range, on
+     * version 2 headers of several data sizes, including ones whose prefix spans
+     * more than one SHA-256 input block.
+     */
+    static void crossCheckJdkAndInTree() {
+        Random random = new Random(13);
+        for (int size = 0; size <= 300; size += 25) {
+            Block block = sampleBlock(size, random, Block.HEADER_V2);
+            NonceHasher jdk = HashEngine.JDK.hasherForCurrentThread();
+            NonceHasher inTree = HashEngine.IN_TREE.hasherForCurrentThread();
+            if (jdk.getClass() == inTree.getClass()) {
+                fail("JDK and IN_TREE use the same hasher");
+            }
+            jdk.reset(block);
+            inTree.reset(block);
+            for (long nonce = 0; nonce < 5000; nonce++) {
+                // The hashers reuse their output arrays, so copy one before calling the other
+                byte[] expected = jdk.hash(nonce).clone();
+                if (!Arrays.equals(expected, inTree.hash(nonce))) {
+                    fail("JDK and IN_TREE differ for v2 data size " + size + " nonce " + nonce);
+                }
+            }
+            long top = Long.MAX_VALUE - 1;
+            byte[] expected = jdk.hash(top).clone();
+            if (!Arrays.equals(expected, inTree.hash(top))) {
+                fail("JDK and IN_TREE differ for v2 data size " + size + " nonce " + top);
+            }
+        }
+    }
+
+    /**
+     * Measures the heap retained by blocks with 64 bytes of data, a previous hash
+     * and a cached hash, and checks it against the bound and Block's estimate.
+     */
+    static void checkBytesPerBlock() {
+        long measured = bytesPerBlock();
+        Block sample = new Block(0, new Timestamp(1730000000000L), "x".repeat(64), 2);
+        sample.setPreviousHash(HeaderHasher.toHex(new byte[32]));
+        long estimated = sample.headerHeapBytes() + sample.dataHeapBytes();
+        System.out.printf("Heap per block (64 byte data): %d bytes measured, %d estimated%n", measured, estimated);
+        if (measured > MAX_BYTES_PER_BLOCK) {
+            fail("a block takes " + measured + " bytes, more than " + MAX_BYTES_PER_BLOCK);
+        }
+        if (Math.abs(measured - estimated) > estimated / 4) {
+            fail("getHeapBytes estimates " + estimated + " bytes per block, but " + measured + " were measured");
+        }
+    }
+
+    /**
+     * Measures the heap retained by blocks that have a previous hash and a cached hash.
+     *
+     * @return The bytes per block
+     */
+    static long bytesPerBlock() {
+        Random random = new Random(5);
+        Block[] blocks = new Block[MEASURED_BLOCKS];
+        long before = usedHeap();
+        for (int i = 0; i < blocks.length; i++) {
+            StringBuilder data = new StringBuilder();
+            for (int j = 0; j < 64; j++) {
+                data.append((char) ('a' + random.nextInt(26)));
+            }
+            Block block = new Block(i, new Timestamp(1730000000000L + i * 1000L), data.toString(), 2);
+            byte[] previous = new byte[32];
+            random.nextBytes(previous);
+            block.setPreviousHash(HeaderHasher.toHex(previous));
+            block.calculateHash();
+            blocks[i] = block;
+        }
+        long after = usedHeap();
+        if (blocks[blocks.length - 1].getIndex() != MEASURED_BLOCKS - 1) {
+            fail("measured blocks were not kept");
+        }
+        return (after - before) / MEASURED_BLOCKS;
+    }
+
+    /**
+     * Gets the heap in use after a few collections.
+     *
+     * @return The bytes in use
+     */
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Adds a block to a fresh chain with a retarget policy and no mining history,
+     * and checks that its difficulty comes from the calibrated hash rate.
+     */
+    static void checkFirstRetarget() {
+        BlockChain chain = new BlockChain();
+        chain.addBlock(new Block(0, chain.getTime(), "Genesis", 2));
+        chain.setRetargetPolicy(new RetargetPolicy(200, 10, 1, 40));
+        Block block = new Block(1, chain.getTime(), "first retargeted block", 1);
+        chain.addBlock(block);
+        int rate = chain.getHashesPerSecond();
+        int expected = new RetargetPolicy(200, 10, 1, 40).nextZeroBits(rate);
+        System.out.printf("First retargeted block: %d bits at %,d hashes/s%n", block.getDifficulty(), rate);
+        if (rate <= 0 || block.getDifficulty() != expected) {
+            fail("the first retargeted block got " + block.getDifficulty() + " bits instead of " + expected);
+        }
+    }
+
+    /**
+     * Builds a block with the given header version, random transaction data of the
+     * given size and a random nonce.
+     */
+    private static Block sampleBlock(int dataSize, Random random, int version) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < dataSize; i++) {
+            data.append((char) ('a' + random.nextInt(26)));
+        }
+        Block block = new Block(random.nextInt(1000), new Timestamp(1730000000000L + random.nextInt(1_000_000)),
+                data.toString(), 2);
+        byte[] previous = new byte[32];
+        random.nextBytes(previous);
+        block.setPreviousHash(HeaderHasher.toHex(previous));
+        block.setHeaderVersion(version);
+        block.proofOfWork(1);
+        return block;
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: " + message);
+        System.exit(1);
+    }
+}
@@ -22,6 +22,8 @@ public class BlockChainDriver {
         // Add Genesis block
         Block genesisBlock = new Block(0, blockchain.getTime(), "Genesis", 2);
         blockchain.addBlock(genesisBlock);
+        // Measure the hash rate in the background so the menu comes up at once
+        blockchain.calibrate();
 
         while (true) {
             System.out.println("\nBlock Chain Menu:");
@@ -164,8 +166,7 @@ public class BlockChainDriver {
         System.out.print("Enter new data for block " + blockId + ": ");
         String newData = scanner.nextLine();
 
-        Block blockToCorrupt = blockchain.getBlock(blockId);
-        blockToCorrupt.setData(newData);
+        blockchain.setBlockData(blockId, newData);
 
         System.out.println("Block " + blockId + " now holds " + newData);
     }
@@ -180,9 +181,10 @@ public class BlockChainDriver {
     private static void repairChain(BlockChain blockchain) {
         System.out.println("Repairing the entire chain");
         long startTime = System.currentTimeMillis();
-        blockchain.repairChain();
+        RepairReport report = blockchain.repairChain();
         long endTime = System.currentTimeMillis();
 
+        System.out.println("Repair " + report);
         System.out.println("Total execution time required to repair the chain was " + (endTime - startTime) + " milliseconds");
     }
 
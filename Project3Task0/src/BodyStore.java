@@ -0,0 +1,328 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is the cold tier for block bodies, i.e. their transaction data. A
+ * chain with a body store keeps only block headers on the heap, and each block
+ * keeps just where its body is (see Block.storeBody). Reading a block's data
+ * faults its body back in through a least recently used cache bounded by size in
+ * bytes, so recently added and often viewed blocks are served from memory.
+ *
+ * A store opened on a BlockLog reads bodies straight from the block records the
+ * chain already writes there, so nothing is written twice and nothing needs
+ * rebuilding after a restart: a reopened block just notes where its record is.
+ * A store opened on a file is for chains without a log: each body is appended to
+ * the file when its block is added. The file holds nothing the chain cannot do
+ * without once it is closed, so it is not synced, and it is emptied when opened.
+ *
+ * The hash of a block added, corrupted or repaired is worked out before its body
+ * is moved out, so status reports, linkage and proof of work checks and
+ * getLatestBlock never read the store for it; only getData, the JSON form and
+ * re-mining a block do. A block read back from a log is hashed from its record
+ * the first time its hash is needed. Hashing, record writes and whole-chain
+ * exports (the JSON and compact forms) read with peek, which leaves the cache
+ * and its hit rate to the blocks people are viewing through getData.
+ *
+ * File layout: for each body, its length (4 bytes) and then its bytes.
+ */
+public class BodyStore implements Closeable {
+    /** Default bound on the bytes of bodies cached on the heap. */
+    public static final long DEFAULT_CACHE_BYTES = 16 << 20;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final BlockLog log;
+    private final long cacheBytes;
+    /** Bodies by location, least recently used first. */
+    private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long end;
+    private long hits;
+    private long misses;
+
+    private BodyStore(Path file, long cacheBytes) throws IOException {
+        this.file = file;
+        this.log = null;
+        this.cacheBytes = cacheBytes;
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private BodyStore(BlockLog log, long cacheBytes) {
+        this.file = null;
+        this.channel = null;
+        this.log = log;
+        this.cacheBytes = cacheBytes;
+    }
+
+    /**
+     * Opens a store that reads bodies from a block log, with the default cache size.
+     * The chain using it must be open on the same log.
+     *
+     * @param log The log the chain's blocks are written to
+     * @return The store
+     */
+    public static BodyStore open(BlockLog log) {
+        return open(log, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Opens a store that reads bodies from a block log. The chain using it must
+     * be open on the same log.
+     *
+     * @param log The log the chain's blocks are written to
+     * @param cacheBytes The most bytes of bodies to keep cached on the heap
+     * @return The store
+     */
+    public static BodyStore open(BlockLog log, long cacheBytes) {
+        return new BodyStore(log, Math.max(0, cacheBytes));
+    }
+
+    /**
+     * Opens an empty body store with the default cache size.
+     *
+     * @param file The file to keep bodies in; anything in it is discarded
+     * @return The store
+     */
+    public static BodyStore open(Path file) {
+        return open(file, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Opens an empty body store.
+     *
+     * @param file The file to keep bodies in; anything in it is discarded
+     * @param cacheBytes The most bytes of bodies to keep cached on the heap
+     * @return The store
+     */
+    public static BodyStore open(Path file, long cacheBytes) {
+        try {
+            return new BodyStore(file, Math.max(0, cacheBytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets the file bodies are kept in.
+     *
+     * @return The body file, or null if bodies are read from a block log
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the block log bodies are read from.
+     *
+     * @return The log, or null if bodies are kept in a file
+     */
+    public BlockLog getBlockLog() {
+        return log;
+    }
+
+    /**
+     * Gets the bound on the bytes of bodies cached on the heap.
+     *
+     * @return The cache size in bytes
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Gets the bytes of bodies cached on the heap now.
+     *
+     * @return The cached bytes, at most getCacheBytes()
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Gets the length of the body file, or of the block log bodies are read from.
+     *
+     * @return The bytes written, including bodies since replaced
+     */
+    public synchronized long getStoredBytes() {
+        return log != null ? log.getLogBytes() : end;
+    }
+
+    /**
+     * Gets the number of reads served from the cache.
+     *
+     * @return The cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of reads that went to the file.
+     *
+     * @return The cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the share of reads served from the cache.
+     *
+     * @return Hits over all reads, or 0 before the first read
+     */
+    public synchronized double getHitRate() {
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    /**
+     * Writes a body to the end of the file. It is cached too, as a block's body
+     * is most likely to be read soon after the block is added.
+     *
+     * @param body The body
+     * @return Where the body was written, for read()
+     * @throws UnsupportedOperationException if bodies are read from a block log,
+     *         which the chain writes them to itself
+     */
+    public synchronized long write(byte[] body) {
+        if (log != null) {
+            throw new UnsupportedOperationException("Bodies are read from the block log in " + log.getDirectory());
+        }
+        long location = end;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + body.length);
+        buffer.putInt(body.length).put(body).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, end + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        end += 4 + body.length;
+        cache(location, body);
+        return location;
+    }
+
+    /**
+     * Caches the body of a block just written to the block log, as a block's
+     * body is most likely to be read soon after the block is added.
+     *
+     * @param location Where the block's record is (see BlockLog.locationOf)
+     * @param body The body
+     */
+    synchronized void remember(long location, byte[] body) {
+        cache(location, body);
+    }
+
+    /**
+     * Reads a body without caching it or counting the read, for hashing a block
+     * or writing its record: a pass over the whole chain, such as validating a
+     * reopened one, would otherwise push out the bodies readers are using.
+     *
+     * @param location Where write() put the body, or where its block's record is in the log
+     * @return The body. It may be shared, so callers must not modify it.
+     */
+    public byte[] peek(long location) {
+        synchronized (this) {
+            byte[] body = cache.get(location);
+            if (body != null) {
+                return body;
+            }
+        }
+        try {
+            return load(location);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a body, from the cache if it is there. The file or log is read
+     * without holding the store's lock, so cache hits do not wait for another read.
+     *
+     * @param location Where write() put the body, or where its block's record is in the log
+     * @return The body. It is shared, so callers must not modify it.
+     */
+    public byte[] read(long location) {
+        synchronized (this) {
+            byte[] body = cache.get(location);
+            if (body != null) {
+                hits++;
+                return body;
+            }
+            misses++;
+        }
+        try {
+            byte[] body = load(location);
+            synchronized (this) {
+                cache(location, body);
+            }
+            return body;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes the body file. Blocks whose bodies are in it can no longer be read.
+     * A store reading from a block log leaves the log open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads a body from the log or the file, bypassing the cache.
+     */
+    private byte[] load(long location) throws IOException {
+        if (log != null) {
+            return log.readData(location);
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, location);
+        ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+        readFully(body, location + 4);
+        return body.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Body at " + position + " is past the end of " + file);
+            }
+        }
+    }
+
+    /**
+     * Adds a body to the cache and evicts the least recently used bodies until
+     * the cache fits its bound again. The caller holds the store's lock.
+     */
+    private void cache(long location, byte[] body) {
+        if (body.length > cacheBytes) {
+            return;
+        }
+        byte[] old = cache.put(location, body);
+        cachedBytes += body.length - (old != null ? old.length : 0);
+        Iterator<Map.Entry<Long, byte[]>> eldest = cache.entrySet().iterator();
+        while (cachedBytes > cacheBytes) {
+            cachedBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * This class is an immutable view of a BlockChain at one moment: its blocks,
+ * chain hash and running totals. BlockChain publishes a new snapshot through a
+ * volatile reference after every append, corruption or repair, so a reader that
+ * takes one snapshot sees either all of a change or none of it, without locking.
+ *
+ * Snapshots are copy-on-write. Replacing a block copies the block array, but an
+ * append only writes the slot just past the current size, which no published
+ * snapshot can see, so appends copy the array only when it has to grow.
+ *
+ * Each snapshot also carries the verified watermark: the blocks below it passed
+ * an earlier validation of this snapshot. It is the only part that changes, and
+ * it only lets later validations skip work.
+ */
+public final class ChainSnapshot {
+    /** Validating fewer blocks than this is faster on one thread than split across cores. */
+    private static final int PARALLEL_VALIDATION_MIN_BLOCKS = 512;
+
+    static final ChainSnapshot EMPTY = new ChainSnapshot(new Block[0], 0, "", 0, 0, 0, Collections.emptyMap(), 0);
+
+    private final Block[] blocks;
+    private final int size;
+    private final String chainHash;
+    private final long totalDifficulty;
+    /** Estimated heap taken by the blocks apart from their data (see Block.headerHeapBytes). */
+    private final long headerBytes;
+    /** Estimated heap taken by the data still on the blocks (see Block.dataHeapBytes). */
+    private final long dataBytes;
+    /** Number of blocks on the chain needing each number of leading zero bits. */
+    private final Map<Integer, Long> blocksByZeroBits;
+    private final AtomicInteger verifiedUpTo;
+
+    private ChainSnapshot(Block[] blocks, int size, String chainHash, long totalDifficulty,
+                          long headerBytes, long dataBytes, Map<Integer, Long> blocksByZeroBits, int verifiedUpTo) {
+        this.blocks = blocks;
+        this.size = size;
+        this.chainHash = chainHash;
+        this.totalDifficulty = totalDifficulty;
+        this.headerBytes = headerBytes;
+        this.dataBytes = dataBytes;
+        this.blocksByZeroBits = blocksByZeroBits;
+        this.verifiedUpTo = new AtomicInteger(verifiedUpTo);
+    }
+
+    /**
+     * Makes the snapshot of a whole chain at once, e.g. one read from a BlockLog.
+     * None of the blocks count as validated yet.
+     *
+     * @param blocks The blocks in chain order; the snapshot keeps the array
+     * @return The new snapshot
+     */
+    static ChainSnapshot of(Block[] blocks) {
+        long total = 0;
+        long header = 0;
+        long data = 0;
+        long[] blocksPerBits = new long[257];
+        Map<Integer, Long> counts = new HashMap<>();
+        for (Block block : blocks) {
+            total += block.getDifficulty();
+            header += block.headerHeapBytes();
+            data += block.dataHeapBytes();
+            int bits = block.getRequiredZeroBits();
+            if (bits >= 0 && bits < blocksPerBits.length) {
+                blocksPerBits[bits]++;
+            } else {
+                counts.merge(bits, 1L, Long::sum);
+            }
+        }
+        for (int bits = 0; bits < blocksPerBits.length; bits++) {
+            if (blocksPerBits[bits] > 0) {
+                counts.put(bits, blocksPerBits[bits]);
+            }
+        }
+        String chainHash = blocks.length > 0 ? blocks[blocks.length - 1].calculateHash() : "";
+        return new ChainSnapshot(blocks, blocks.length, chainHash, total, header, data,
+                Collections.unmodifiableMap(counts), 0);
+    }
+
+    /**
+     * Gets the size of the chain.
+     *
+     * @return The number of Blocks in the chain.
+     */
+    public int getChainSize() {
+        return size;
+    }
+
+    /**
+     * Gets the chain hash.
+     *
+     * @return The hash of the most recently added Block.
+     */
+    public String getChainHash() {
+        return chainHash;
+    }
+
+    /**
+     * Gets the most recently added Block.
+     *
+     * @return The most recently added Block, or null if the chain is empty.
+     */
+    public Block getLatestBlock() {
+        return size == 0 ? null : blocks[size - 1];
+    }
+
+    /**
+     * Gets the Block at a specific position in the chain.
+     *
+     * @param i The index of the Block to retrieve.
+     * @return The Block at position i, or null if i is out of bounds.
+     */
+    public Block getBlock(int i) {
+        return (i >= 0 && i < size) ? blocks[i] : null;
+    }
+
+    /**
+     * Gets the blocks of the chain in order.
+     *
+     * @return An unmodifiable list of the blocks
+     */
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(Arrays.asList(blocks).subList(0, size));
+    }
+
+    /**
+     * Gets the total difficulty of all Blocks on the chain.
+     *
+     * @return The sum of difficulties of all Blocks.
+     */
+    public int getTotalDifficulty() {
+        return (int) totalDifficulty;
+    }
+
+    /**
+     * Gets the average difficulty number of the Blocks on the chain.
+     *
+     * @return The average difficulty, or 0 for an empty chain.
+     */
+    public double getAverageDifficulty() {
+        return size == 0 ? 0 : (double) totalDifficulty / size;
+    }
+
+    /**
+     * Gets the estimated heap taken by the blocks apart from their data.
+     *
+     * @return The estimated bytes
+     */
+    long getHeaderBytes() {
+        return headerBytes;
+    }
+
+    /**
+     * Gets the estimated heap taken by the data the blocks held when they were
+     * added. It says nothing once the chain has a body store.
+     *
+     * @return The estimated bytes
+     */
+    long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * Computes the expected number of hashes required for the entire chain.
+     * A block needing n leading zero bits is expected to take 2^n hashes.
+     *
+     * @return The total expected number of hashes for all Blocks.
+     */
+    public double getTotalExpectedHashes() {
+        double total = 0;
+        for (Map.Entry<Integer, Long> entry : blocksByZeroBits.entrySet()) {
+            total += entry.getValue() * Math.pow(2, entry.getKey());
+        }
+        return total;
+    }
+
+    /**
+     * Gets the position below which every block has been validated.
+     */
+    int getVerifiedUpTo() {
+        return verifiedUpTo.get();
+    }
+
+    /**
+     * Records that the blocks below a position passed validation. Concurrent
+     * validations of the same snapshot agree, so the highest position wins.
+     */
+    void raiseVerifiedUpTo(int position) {
+        verifiedUpTo.accumulateAndGet(position, Math::max);
+    }
+
+    /**
+     * Lowers the watermark after a block on the chain was changed in place.
+     */
+    void lowerVerifiedUpTo(int position) {
+        verifiedUpTo.accumulateAndGet(position, Math::min);
+    }
+
+    /**
+     * Finds the first block at or after a position that fails its proof of work
+     * or its link to the previous block. Every block's checks are independent,
+     * so long runs can be split across the common fork-join pool; findFirst on
+     * the ordered stream still gives the lowest failing position.
+     *
+     * @param from The first position to check
+     * @param parallel true to check long runs of blocks in parallel
+     * @return The lowest failing position, or the chain size if all pass
+     */
+    int firstInvalidBlock(int from, boolean parallel) {
+        if (parallel && size - from >= PARALLEL_VALIDATION_MIN_BLOCKS) {
+            return IntStream.range(from, size)
+                    .parallel()
+                    .filter(i -> validationError(i) != null)
+                    .findFirst()
+                    .orElse(size);
+        }
+        for (int i = from; i < size; i++) {
+            if (validationError(i) != null) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Checks one block's proof of work and its link to the previous block.
+     *
+     * @param i The position of the block
+     * @return The error message for the block, or null if it is valid
+     */
+    String validationError(int i) {
+        Block currentBlock = blocks[i];
+
+        if (!currentBlock.hasValidProofOfWork()) {
+            return "Error: Invalid proof of work in block " + i;
+        }
+
+        if (i > 0) {
+            Block previousBlock = blocks[i - 1];
+            if (!currentBlock.linksTo(previousBlock)) {
+                return "Chain Validation : FALSE " +
+                        "Error: Invalid hash chain at block " + i;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes the snapshot with a block added to the end. The caller must hold
+     * the chain's write lock and append only to the current snapshot.
+     *
+     * @param block The mined block
+     * @return The new snapshot
+     */
+    ChainSnapshot append(Block block) {
+        Block[] array = blocks;
+        if (size == array.length) {
+            array = Arrays.copyOf(array, Math.max(16, size + (size >> 1)));
+        }
+        array[size] = block;
+        Map<Integer, Long> counts = new HashMap<>(blocksByZeroBits);
+        counts.merge(block.getRequiredZeroBits(), 1L, Long::sum);
+        return new ChainSnapshot(array, size + 1, block.calculateHash(), totalDifficulty + block.getDifficulty(),
+                headerBytes + block.headerHeapBytes(), dataBytes + block.dataHeapBytes(),
+                Collections.unmodifiableMap(counts), getVerifiedUpTo());
+    }
+
+    /**
+     * Makes the snapshot with the blocks from a position on replaced. The chain
+     * hash is kept, as it only follows appends and repairs.
+     *
+     * @param from The position of the first replacement
+     * @param replacements The new blocks, no more than reach the end of the chain
+     * @return The new snapshot
+     */
+    ChainSnapshot replace(int from, Block... replacements) {
+        Block[] array = Arrays.copyOf(blocks, blocks.length);
+        long total = totalDifficulty;
+        long header = headerBytes;
+        long data = dataBytes;
+        Map<Integer, Long> counts = new HashMap<>(blocksByZeroBits);
+        for (int i = 0; i < replacements.length; i++) {
+            Block old = array[from + i];
+            Block block = replacements[i];
+            total += block.getDifficulty() - old.getDifficulty();
+            header += block.headerHeapBytes() - old.headerHeapBytes();
+            data += block.dataHeapBytes() - old.dataHeapBytes();
+            counts.computeIfPresent(old.getRequiredZeroBits(), (bits, count) -> count == 1 ? null : count - 1);
+            counts.merge(block.getRequiredZeroBits(), 1L, Long::sum);
+            array[from + i] = block;
+        }
+        return new ChainSnapshot(array, size, chainHash, total, header, data, Collections.unmodifiableMap(counts),
+                Math.min(getVerifiedUpTo(), from));
+    }
+
+    /**
+     * Makes the snapshot with the totals updated after a block on the chain
+     * changed its difficulty in place.
+     *
+     * @param block The block, already changed
+     * @param oldDifficulty Its difficulty number before the change
+     * @param oldZeroBits Its required zero bits before the change
+     * @return The new snapshot
+     */
+    ChainSnapshot difficultyChanged(Block block, int oldDifficulty, int oldZeroBits) {
+        Map<Integer, Long> counts = new HashMap<>(blocksByZeroBits);
+        counts.computeIfPresent(oldZeroBits, (bits, count) -> count == 1 ? null : count - 1);
+        counts.merge(block.getRequiredZeroBits(), 1L, Long::sum);
+        return new ChainSnapshot(blocks, size, chainHash, totalDifficulty - oldDifficulty + block.getDifficulty(),
+                headerBytes, dataBytes, Collections.unmodifiableMap(counts), getVerifiedUpTo());
+    }
+
+    /**
+     * Makes the snapshot with the chain hash set to the latest block's hash.
+     *
+     * @return The new snapshot, or this one if the chain hash is already right
+     */
+    ChainSnapshot withCurrentChainHash() {
+        if (size == 0 || chainHash.equals(blocks[size - 1].calculateHash())) {
+            return this;
+        }
+        return new ChainSnapshot(blocks, size, blocks[size - 1].calculateHash(), totalDifficulty,
+                headerBytes, dataBytes, blocksByZeroBits, getVerifiedUpTo());
+    }
+}
@@ -0,0 +1,213 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * This class hashes block headers for the proof of work without allocating per attempt.
+ * Each mining thread owns one instance (see forCurrentThread()) holding its own
+ * MessageDigest for the block's hash algorithm, the encoded header prefix of the
+ * block being mined, a scratch buffer for the nonce and difficulty digits, and the
+ * 32 byte output buffer.
+ * The bytes hashed are exactly those Block.calculateHash() hashes, so the raw digest
+ * can be checked for leading zeros directly and hex encoded only for the winner.
+ *
+ * The nonce is written as decimal digits for version 1 headers and as 8 binary
+ * bytes for version 2 headers (see Block.HEADER_V2).
+ *
+ * Everything before the nonce is the same for every attempt on a block. When that
+ * prefix fills at least one input block of the hash algorithm, it is absorbed into
+ * a digest once per block and that midstate is cloned for each nonce, so only the
+ * nonce and difficulty suffix is hashed per attempt. Cloning a digest costs less than
+ * re-hashing even a single block, but it is not free, so short prefixes (such as
+ * a genesis block with no previous hash) are still hashed from scratch.
+ *
+ * This is the JDK engine (see HashEngine), so it always hashes with MessageDigest,
+ * which HotSpot runs on the CPU's SHA instructions where it can. Each clone is a
+ * small, short-lived allocation; on a version 2 header it still measured faster
+ * than re-hashing the whole header from a reset digest. Hashing without any
+ * allocation is left to the IN_TREE engine (see Sha256HeaderHasher).
+ */
+public class HeaderHasher implements NonceHasher {
+    private static final ThreadLocal<HeaderHasher> PER_THREAD = ThreadLocal.withInitial(HeaderHasher::new);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private MessageDigest digest;
+    private final byte[] suffix = new byte[32];
+    private final byte[] hash = new byte[32];
+    private byte[] prefix = new byte[0];
+    private byte[] headerSuffix = new byte[0];
+    private boolean binaryNonce;
+    private MessageDigest midstate;
+
+    private HeaderHasher() {
+        this.digest = HashAlgorithm.SHA_256.newDigest();
+    }
+
+    /**
+     * Gets the hasher owned by the calling thread.
+     *
+     * @return The calling thread's HeaderHasher
+     */
+    public static HeaderHasher forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    /**
+     * Prepares the hasher for a block. This is the only step that allocates,
+     * and it happens once per block rather than once per nonce.
+     *
+     * @param block The block that is about to be mined
+     */
+    @Override
+    public void reset(Block block) {
+        HashAlgorithm algorithm = block.getHashAlgorithm();
+        if (!digest.getAlgorithm().equals(algorithm.getId())) {
+            digest = algorithm.newDigest();
+        }
+        this.prefix = block.headerPrefix();
+        this.headerSuffix = block.headerSuffix();
+        this.binaryNonce = block.hasBinaryNonce();
+        this.midstate = null;
+        if (prefix.length >= algorithm.getBlockSize()) {
+            digest.reset();
+            digest.update(prefix, 0, prefix.length);
+            try {
+                midstate = (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException e) {
+                // Provider can't copy its state; hash the whole header every time instead
+            }
+            digest.reset();
+        }
+    }
+
+    /**
+     * Hashes the block header with the given nonce.
+     *
+     * @param nonce The nonce to hash with
+     * @return The raw digest. The array is reused by the next call.
+     */
+    @Override
+    public byte[] hash(long nonce) {
+        int length = writeNonce(nonce, binaryNonce, suffix, 0);
+        System.arraycopy(headerSuffix, 0, suffix, length, headerSuffix.length);
+        length += headerSuffix.length;
+
+        MessageDigest md = digest;
+        if (midstate != null) {
+            md = copyOfMidstate();
+        } else {
+            md.update(prefix, 0, prefix.length);
+        }
+        md.update(suffix, 0, length);
+        try {
+            md.digest(hash, 0, hash.length);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        return hash;
+    }
+
+    /**
+     * Copies the digest state reached after absorbing the header prefix.
+     */
+    private MessageDigest copyOfMidstate() {
+        try {
+            return (MessageDigest) midstate.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether a raw digest starts with the given number of zero bits.
+     *
+     * @param hash The raw digest
+     * @param bits The number of leading zero bits required
+     * @return true if the digest starts with that many zero bits
+     */
+    public static boolean hasLeadingZeroBits(byte[] hash, int bits) {
+        int fullBytes = bits / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (hash[i] != 0) {
+                return false;
+            }
+        }
+        int rest = bits % 8;
+        return rest == 0 || (hash[fullBytes] & 0xff) >>> (8 - rest) == 0;
+    }
+
+    /**
+     * Converts a raw digest to its lowercase hexadecimal form.
+     *
+     * @param hash The raw digest
+     * @return The hexadecimal string
+     */
+    public static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Converts a hexadecimal hash back to raw bytes. Upper and lower case digits are accepted.
+     *
+     * @param hex The hexadecimal string
+     * @return The raw bytes, or null if hex is not an even number of hex digits
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a nonce into a buffer the way a block header encodes it.
+     *
+     * @param nonce The nonce
+     * @param binary true for 8 big-endian bytes (version 2), false for decimal digits (version 1)
+     * @param buffer The buffer to write to
+     * @param offset Where to start writing
+     * @return The offset just past the nonce
+     */
+    static int writeNonce(long nonce, boolean binary, byte[] buffer, int offset) {
+        if (!binary) {
+            return writeDigits(nonce, buffer, offset);
+        }
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) nonce;
+            nonce >>>= 8;
+        }
+        return offset + 8;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative value into a buffer, the same
+     * digits Long.toString would produce.
+     *
+     * @return The offset just past the last digit written
+     */
+    static int writeDigits(long value, byte[] buffer, int offset) {
+        int length = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        int position = offset + length;
+        do {
+            buffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return offset + length;
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * This class reads back the JSON dump BlockChain.toString() writes (view,
+ * operation 3), so a chain can be seeded from a dump instead of mined again.
+ * The dump is streamed: it is read in chunks and cut into the text of each block
+ * as it arrives, and every BATCH_SIZE blocks are handed to the common fork-join
+ * pool to parse (see Block.parse) and hash, while reading carries on.
+ *
+ * The dump does not escape block data, so a block ends where "}," is followed by
+ * the start of the next block; data that itself contains such a boundary cannot
+ * be read back. Dumps separated by ", " and by ",\n" are both read.
+ */
+public class JsonChainFormat {
+    /** Blocks parsed per task. */
+    public static final int BATCH_SIZE = 1024;
+
+    private static final String BLOCK_START = "{\"index\": ";
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private JsonChainFormat() {
+    }
+
+    /**
+     * Reads the blocks of a JSON dump, hashing them with the given algorithm.
+     * The blocks are not validated.
+     *
+     * @param in The dump; it is read to the end but not closed
+     * @param hashAlgorithm The algorithm the chain was hashed with, which the dump does not record
+     * @return The blocks in chain order, not attached to any chain
+     * @throws IOException if the stream fails or does not hold a chain dump
+     */
+    public static Block[] read(Reader in, HashAlgorithm hashAlgorithm) throws IOException {
+        List<CompletableFuture<Block[]>> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        StringBuilder pending = new StringBuilder();
+        char[] chunk = new char[CHUNK_CHARS];
+        int start = -1;
+        int searchFrom = 0;
+        boolean end = false;
+        while (!end) {
+            int read = in.read(chunk);
+            end = read < 0;
+            if (!end) {
+                pending.append(chunk, 0, read);
+            }
+            if (start < 0) {
+                start = pending.indexOf(BLOCK_START);
+                if (start < 0) {
+                    continue;
+                }
+                searchFrom = start + 1;
+            }
+
+            // Cut off every block whose end has arrived
+            int next;
+            while ((next = pending.indexOf(BLOCK_START, searchFrom)) >= 0) {
+                int comma = previousNonSpace(pending, next - 1);
+                int close = comma > start && pending.charAt(comma) == ',' ? previousNonSpace(pending, comma - 1) : -1;
+                if (close > start && pending.charAt(close) == '}') {
+                    batch.add(pending.substring(start, close + 1));
+                    if (batch.size() == BATCH_SIZE) {
+                        batches.add(parseLater(batch, hashAlgorithm));
+                        batch = new ArrayList<>();
+                    }
+                    start = next;
+                }
+                searchFrom = next + 1;
+            }
+            if (end) {
+                int close = pending.lastIndexOf("]");
+                if (close < start) {
+                    throw new IOException("Chain dump ends without \"]\"");
+                }
+                batch.add(pending.substring(start, close));
+            } else if (start > CHUNK_CHARS) {
+                pending.delete(0, start);
+                searchFrom -= start;
+                start = 0;
+            }
+        }
+        if (start >= 0) {
+            batches.add(parseLater(batch, hashAlgorithm));
+        }
+
+        List<Block> blocks = new ArrayList<>();
+        try {
+            for (CompletableFuture<Block[]> parsed : batches) {
+                blocks.addAll(List.of(parsed.join()));
+            }
+        } catch (CompletionException e) {
+            throw new IOException("Not a chain dump: " + e.getCause().getMessage(), e.getCause());
+        }
+        return blocks.toArray(new Block[0]);
+    }
+
+    /**
+     * Counts the most blocks a dump can hold, without parsing it: the places a
+     * block could start. Data holding such text only makes the count higher, so
+     * a dump with fewer blocks than this returns is certain to be short.
+     *
+     * @param dump The dump
+     * @return The most blocks it can hold
+     */
+    public static int maxBlocks(String dump) {
+        int blocks = 0;
+        for (int i = dump.indexOf(BLOCK_START); i >= 0; i = dump.indexOf(BLOCK_START, i + BLOCK_START.length())) {
+            blocks++;
+        }
+        return blocks;
+    }
+
+    /**
+     * Starts parsing and hashing a batch of block texts on the common pool.
+     */
+    private static CompletableFuture<Block[]> parseLater(List<String> texts, HashAlgorithm hashAlgorithm) {
+        return CompletableFuture.supplyAsync(() -> {
+            Block[] blocks = new Block[texts.size()];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = Block.parse(texts.get(i));
+                blocks[i].setHashAlgorithm(hashAlgorithm);
+                blocks[i].hashBytes();
+            }
+            return blocks;
+        });
+    }
+
+    private static int previousNonSpace(CharSequence text, int from) {
+        int i = from;
+        while (i >= 0 && Character.isWhitespace(text.charAt(i))) {
+            i--;
+        }
+        return i;
+    }
+}
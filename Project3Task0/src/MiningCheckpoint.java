@@ -0,0 +1,191 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+
+/**
+ * This class saves the progress of a long proof of work to a small local file,
+ * so a restarted server can carry on mining a block instead of starting from
+ * nonce zero. The file holds the header fields of the block being mined and the
+ * last nonce below which every nonce is known to have failed.
+ *
+ * The miner threads never touch the file. ParallelMiner saves from a separate
+ * thread every few seconds, reading only where each worker has got to, so the
+ * cost to the hash rate is a couple of volatile writes per chunk of nonces.
+ * Each save goes to a temporary file that is then moved over the old one, so a
+ * crash mid-save leaves the previous checkpoint intact. A save that fails is
+ * reported on System.err and retried at the next interval; it never stops mining.
+ */
+public class MiningCheckpoint {
+    private static final int FORMAT_VERSION = 3;
+    private static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    private final Path file;
+    private final long intervalMillis;
+
+    /**
+     * Creates a checkpoint that saves every 5 seconds.
+     *
+     * @param file The file to save progress to
+     */
+    public MiningCheckpoint(Path file) {
+        this(file, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a checkpoint that saves at the given interval.
+     *
+     * @param file The file to save progress to
+     * @param intervalMillis Milliseconds between saves
+     */
+    public MiningCheckpoint(Path file, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Gets the file progress is saved to.
+     *
+     * @return The checkpoint file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the time between saves.
+     *
+     * @return The interval in milliseconds
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Continues from saved progress if the file holds a checkpoint for this block.
+     * A block matches when its index, data, previous hash, difficulty, hash
+     * algorithm and header version are the same; its timestamp is then set back to the saved one and
+     * its nonce to the last nonce tried, so proofOfWork() carries on from there.
+     *
+     * @param block The block about to be mined
+     * @return true if the block was moved to saved progress
+     */
+    public boolean resume(Block block) {
+        try (InputStream in = Files.newInputStream(file)) {
+            DataInputStream input = new DataInputStream(in);
+            if (input.readInt() != FORMAT_VERSION) {
+                return false;
+            }
+            int index = input.readInt();
+            long timestamp = input.readLong();
+            String data = input.readBoolean() ? readString(input) : null;
+            String previousHash = input.readBoolean() ? readString(input) : null;
+            int difficulty = input.readInt();
+            String unit = input.readUTF();
+            String algorithm = input.readUTF();
+            int headerVersion = input.readInt();
+            long lastNonce = input.readLong();
+
+            boolean sameBlock = index == block.getIndex()
+                    && (data == null ? block.getData() == null : data.equals(block.getData()))
+                    && (previousHash == null ? block.getPreviousHash() == null : previousHash.equals(block.getPreviousHash()))
+                    && difficulty == block.getDifficulty()
+                    && unit.equals(block.getDifficultyUnit().name())
+                    && algorithm.equals(block.getHashAlgorithm().getId())
+                    && headerVersion == block.getHeaderVersion();
+            if (!sameBlock) {
+                return false;
+            }
+            block.setTimestamp(new Timestamp(timestamp));
+            block.setNonce(lastNonce);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            // A damaged checkpoint only costs the saved progress
+            return false;
+        }
+    }
+
+    /**
+     * Saves the progress on a block. A failure, e.g. a full disk, is reported
+     * rather than thrown, since saving runs on a scheduled thread that would
+     * otherwise stop saving for good.
+     *
+     * @param block The block being mined
+     * @param lastNonce The nonce up to which every nonce has been tried
+     * @return true if the progress was saved
+     */
+    boolean save(Block block, long lastNonce) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                DataOutputStream output = new DataOutputStream(out);
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(block.getIndex());
+                output.writeLong(block.getTimestamp().getTime());
+                output.writeBoolean(block.getData() != null);
+                if (block.getData() != null) {
+                    writeString(output, block.getData());
+                }
+                output.writeBoolean(block.getPreviousHash() != null);
+                if (block.getPreviousHash() != null) {
+                    writeString(output, block.getPreviousHash());
+                }
+                output.writeInt(block.getDifficulty());
+                output.writeUTF(block.getDifficultyUnit().name());
+                output.writeUTF(block.getHashAlgorithm().getId());
+                output.writeInt(block.getHeaderVersion());
+                output.writeLong(lastNonce);
+                output.flush();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not save mining checkpoint to " + file + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the saved progress, once the block it was for has been added. A
+     * checkpoint left behind only matches that block, so a failure is reported
+     * rather than thrown.
+     */
+    public void clear() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Could not delete mining checkpoint " + file + ": " + e);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > input.available()) {
+            throw new IOException("Damaged checkpoint");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class searches the nonce space of a Block on several threads.
+ * Nonces are handed out to the workers in fixed size chunks, in increasing order.
+ * As soon as a worker finds a valid hash it publishes its nonce, which stops every
+ * worker that is past that nonce. Workers still below it finish their chunk, so the
+ * smallest valid nonce always wins - the same nonce the serial
+ * Block.proofOfWork() search would accept.
+ *
+ * A search can be tied to a MiningTask. Workers then count the nonces they try
+ * and check for cancellation between chunks, so stopping costs one check per chunk.
+ *
+ * A search can also be checkpointed. Each worker then records the first nonce of
+ * the chunk it is on, and a separate thread periodically saves the lowest of
+ * those as the point below which every nonce has been tried.
+ */
+public class ParallelMiner {
+    /** Returned by findNonce when no nonce up to Long.MAX_VALUE is valid. */
+    public static final long NOT_FOUND = -1;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pow-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ScheduledExecutorService CHECKPOINTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pow-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ParallelMiner() {
+    }
+
+    /**
+     * Finds the smallest nonce at or above start that gives the block a valid hash.
+     * The block itself is not modified. With a single thread the search runs
+     * on the calling thread.
+     *
+     * @param block The block to mine
+     * @param start The first nonce to try
+     * @param threads The number of worker threads to use
+     * @param engine The SHA-256 implementation to hash headers with
+     * @return The winning nonce, or NOT_FOUND if the long nonce space is exhausted
+     */
+    public static long findNonce(Block block, long start, int threads, HashEngine engine) {
+        return findNonce(block, start, threads, engine, null, null);
+    }
+
+    /**
+     * Finds the smallest valid nonce at or above start, reporting progress to a
+     * task and saving it to a checkpoint.
+     *
+     * @param block The block to mine
+     * @param start The first nonce to try
+     * @param threads The number of worker threads to use
+     * @param engine The SHA-256 implementation to hash headers with
+     * @param task The task to count attempts for and stop on, or null
+     * @param checkpoint Where to save progress periodically, or null
+     * @return The winning nonce, or NOT_FOUND if the long nonce space is exhausted
+     * @throws CancellationException if the task was cancelled or timed out during the search
+     */
+    static long findNonce(Block block, long start, int threads, HashEngine engine,
+                          MiningTask task, MiningCheckpoint checkpoint) {
+        int workerCount = Math.max(1, threads);
+        Search search = new Search(block, engine, start, task, checkpoint != null ? workerCount : 0);
+        ScheduledFuture<?> saver = null;
+        if (checkpoint != null) {
+            long interval = checkpoint.getIntervalMillis();
+            saver = CHECKPOINTS.scheduleWithFixedDelay(() -> search.save(checkpoint),
+                    interval, interval, TimeUnit.MILLISECONDS);
+        }
+        try {
+            if (workerCount == 1) {
+                search.run(0);
+                return search.result();
+            }
+            return runWorkers(search, workerCount);
+        } finally {
+            if (saver != null) {
+                saver.cancel(false);
+                search.closeCheckpoint();
+            }
+        }
+    }
+
+    /**
+     * Runs a search on the worker pool and waits for every worker to finish.
+     */
+    private static long runWorkers(Search search, int threads) {
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            workers.add(() -> {
+                search.run(worker);
+                return null;
+            });
+        }
+
+        List<Future<Void>> futures = new ArrayList<>();
+        boolean finished = false;
+        try {
+            for (Callable<Void> worker : workers) {
+                futures.add(WORKERS.submit(worker));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            finished = true;
+            return search.result();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (!finished) {
+                // Make every remaining worker give up, e.g. after one of them failed
+                search.best.set(Long.MIN_VALUE);
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state shared by the workers of one search.
+     */
+    private static final class Search {
+        private final Block block;
+        private final HashEngine engine;
+        private final long start;
+        private final int zeroBits;
+        private final MiningTask task;
+        private final AtomicLong nextChunk = new AtomicLong();
+        private final AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+        /** Per worker, a nonce at or below the first one it has not finished; only kept when checkpointing. */
+        private final AtomicLongArray positions;
+        private long saved;
+        private boolean checkpointClosed;
+
+        Search(Block block, HashEngine engine, long start, MiningTask task, int trackedWorkers) {
+            this.block = block;
+            this.engine = engine;
+            this.start = start;
+            this.zeroBits = block.getRequiredZeroBits();
+            this.task = task;
+            this.positions = trackedWorkers > 0 ? new AtomicLongArray(trackedWorkers) : null;
+            if (positions != null) {
+                for (int i = 0; i < trackedWorkers; i++) {
+                    positions.set(i, start);
+                }
+            }
+            this.saved = start;
+        }
+
+        /**
+         * Body of one worker: claims chunks until a winner below the next chunk is known.
+         */
+        void run(int worker) {
+            NonceHasher hasher = engine.hasherForCurrentThread(block.getHashAlgorithm());
+            hasher.reset(block);
+            while (true) {
+                if (positions != null) {
+                    // Never above the chunk about to be claimed, since nextChunk only grows
+                    positions.set(worker, firstOf(nextChunk.get()));
+                }
+                long chunk = nextChunk.getAndIncrement();
+                if (chunk > (Long.MAX_VALUE - start) / CHUNK_SIZE) {
+                    return;
+                }
+                long first = firstOf(chunk);
+                long last = first + Math.min(CHUNK_SIZE - 1, Long.MAX_VALUE - first);
+                if (positions != null) {
+                    positions.set(worker, first);
+                }
+                if (first > best.get() || (task != null && task.stopRequested())) {
+                    return;
+                }
+                long found = hasher.findInRange(first, last, zeroBits, best);
+                if (task != null) {
+                    task.addAttempts((found != NOT_FOUND ? found : last) - first + 1);
+                }
+                if (found != NOT_FOUND) {
+                    publish(found);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Saves the nonce below which every nonce has been tried, if it has moved on.
+         * Runs on the checkpoint thread, never on a worker.
+         */
+        synchronized void save(MiningCheckpoint checkpoint) {
+            if (checkpointClosed) {
+                return;
+            }
+            // Chunks claimed after this read start at or above it
+            long done = firstOf(nextChunk.get());
+            for (int i = 0; i < positions.length(); i++) {
+                done = Math.min(done, positions.get(i));
+            }
+            if (done > saved && best.get() == Long.MAX_VALUE && checkpoint.save(block, done - 1)) {
+                saved = done;
+            }
+        }
+
+        /**
+         * Stops further saves, waiting for one in progress, so nothing is written
+         * after the search has returned.
+         */
+        synchronized void closeCheckpoint() {
+            checkpointClosed = true;
+        }
+
+        /**
+         * Turns the shared best value into the search result.
+         */
+        long result() {
+            if (task != null && task.isCancelled()) {
+                // Workers may have stopped early, so best is not necessarily the smallest nonce
+                throw new CancellationException("Mining cancelled");
+            }
+            return best.get() == Long.MAX_VALUE ? NOT_FOUND : best.get();
+        }
+
+        /**
+         * Gets the first nonce of a chunk, saturating once past the end of the nonce space.
+         */
+        private long firstOf(long chunk) {
+            return chunk > (Long.MAX_VALUE - start) / CHUNK_SIZE ? Long.MAX_VALUE : start + chunk * CHUNK_SIZE;
+        }
+
+        /**
+         * Records a winning nonce, keeping the smallest one seen so far.
+         */
+        private void publish(long nonce) {
+            long current;
+            do {
+                current = best.get();
+            } while (nonce < current && !best.compareAndSet(current, nonce));
+        }
+    }
+}
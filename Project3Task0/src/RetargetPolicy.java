@@ -0,0 +1,99 @@
+import java.util.ArrayDeque;
+
+/**
+ * This class picks a bit difficulty for the next block so that mining it takes about
+ * a configured target time. It remembers how many leading zero bits, and how many
+ * milliseconds of mining, each of the last few blocks took, estimates the hash rate
+ * from that as expected hashes over elapsed time, and returns the number of bits
+ * whose expected work (2^bits hashes) best fits the target at that rate.
+ * Until any block has been mined it uses the chain's hashes per second instead;
+ * BlockChain waits for its calibration first, so that rate is a measured one.
+ * Given no history and no rate, it falls back to the smallest difficulty.
+ */
+public class RetargetPolicy {
+    private final long targetMillis;
+    private final int window;
+    private final int minBits;
+    private final int maxBits;
+    private final ArrayDeque<long[]> history = new ArrayDeque<>();
+
+    /**
+     * Creates a policy that looks at the last 10 blocks and keeps difficulty between 1 and 64 bits.
+     *
+     * @param targetMillis The mining time to aim for, in milliseconds
+     */
+    public RetargetPolicy(long targetMillis) {
+        this(targetMillis, 10, 1, 64);
+    }
+
+    /**
+     * Creates a policy.
+     *
+     * @param targetMillis The mining time to aim for, in milliseconds
+     * @param window How many recent blocks to base the estimate on
+     * @param minBits The smallest difficulty to return, in bits
+     * @param maxBits The largest difficulty to return, in bits
+     */
+    public RetargetPolicy(long targetMillis, int window, int minBits, int maxBits) {
+        this.targetMillis = targetMillis;
+        this.window = Math.max(1, window);
+        this.minBits = minBits;
+        this.maxBits = maxBits;
+    }
+
+    /**
+     * Gets the mining time this policy aims for.
+     *
+     * @return The target time in milliseconds
+     */
+    public long getTargetMillis() {
+        return targetMillis;
+    }
+
+    /**
+     * Records how long a block took to mine.
+     *
+     * @param zeroBits The number of leading zero bits the block required
+     * @param millis The time spent mining it, in milliseconds
+     */
+    public synchronized void record(int zeroBits, long millis) {
+        history.addLast(new long[]{zeroBits, millis});
+        if (history.size() > window) {
+            history.removeFirst();
+        }
+    }
+
+    /**
+     * Tells whether any block has been recorded yet.
+     *
+     * @return true once the policy estimates the hash rate from mined blocks
+     */
+    public synchronized boolean hasHistory() {
+        return !history.isEmpty();
+    }
+
+    /**
+     * Works out the difficulty for the next block.
+     *
+     * @param hashesPerSecond The chain's measured hash rate, used while there is no history
+     * @return The number of leading zero bits to require; minBits if there is
+     *         neither history nor a rate to go on
+     */
+    public synchronized int nextZeroBits(int hashesPerSecond) {
+        double expectedHashes = 0;
+        long millis = 0;
+        for (long[] entry : history) {
+            expectedHashes += Math.pow(2, entry[0]);
+            millis += entry[1];
+        }
+        double hashesPerMilli = history.isEmpty()
+                ? hashesPerSecond / 1000.0
+                : expectedHashes / Math.max(1, millis);
+        if (hashesPerMilli <= 0) {
+            return minBits;
+        }
+        double targetHashes = hashesPerMilli * targetMillis;
+        long bits = Math.round(Math.log(targetHashes) / Math.log(2));
+        return (int) Math.max(minBits, Math.min(maxBits, bits));
+    }
+}
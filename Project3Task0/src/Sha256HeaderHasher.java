@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+/**
+ * This class hashes block headers with the in-tree Sha256 compressor instead of
+ * MessageDigest. reset() runs every whole 64 byte block of the header prefix through
+ * the compression function once and keeps the resulting int state as the midstate.
+ * Each nonce then only needs the prefix tail, the nonce and the rest of the header and
+ * the padding compressed from a copy of that midstate. The padding is rewritten only when
+ * the message length changes, i.e. when a decimal nonce gains a digit.
+ * Nothing is allocated per nonce, not even for the midstate copy.
+ */
+public class Sha256HeaderHasher implements NonceHasher {
+    private static final ThreadLocal<Sha256HeaderHasher> PER_THREAD = ThreadLocal.withInitial(Sha256HeaderHasher::new);
+
+    private final int[] midstate = new int[8];
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] buffer = new byte[2 * Sha256.BLOCK_SIZE];
+    private final byte[] hash = new byte[32];
+    private byte[] headerSuffix = new byte[0];
+    private boolean binaryNonce;
+    private int prefixLength;
+    private int tailLength;
+    private int messageEnd;
+    private int blocks;
+
+    private Sha256HeaderHasher() {
+    }
+
+    /**
+     * Gets the hasher owned by the calling thread.
+     *
+     * @return The calling thread's Sha256HeaderHasher
+     */
+    public static Sha256HeaderHasher forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    @Override
+    public void reset(Block block) {
+        byte[] prefix = block.headerPrefix();
+        int full = prefix.length / Sha256.BLOCK_SIZE * Sha256.BLOCK_SIZE;
+        Sha256.init(midstate);
+        for (int offset = 0; offset < full; offset += Sha256.BLOCK_SIZE) {
+            Sha256.compress(midstate, prefix, offset, w);
+        }
+
+        Arrays.fill(buffer, (byte) 0);
+        tailLength = prefix.length - full;
+        System.arraycopy(prefix, full, buffer, 0, tailLength);
+        prefixLength = prefix.length;
+        headerSuffix = block.headerSuffix();
+        binaryNonce = block.hasBinaryNonce();
+        messageEnd = -1;
+    }
+
+    @Override
+    public byte[] hash(long nonce) {
+        int end = HeaderHasher.writeNonce(nonce, binaryNonce, buffer, tailLength);
+        System.arraycopy(headerSuffix, 0, buffer, end, headerSuffix.length);
+        end += headerSuffix.length;
+        if (end != messageEnd) {
+            Arrays.fill(buffer, end, buffer.length, (byte) 0);
+            blocks = Sha256.pad(buffer, end, prefixLength + (end - tailLength));
+            messageEnd = end;
+        }
+
+        System.arraycopy(midstate, 0, state, 0, 8);
+        for (int i = 0; i < blocks; i++) {
+            Sha256.compress(state, buffer, i * Sha256.BLOCK_SIZE, w);
+        }
+        Sha256.writeState(state, hash);
+        return hash;
+    }
+}
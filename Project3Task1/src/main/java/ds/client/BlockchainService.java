@@ -13,6 +13,8 @@ Verifying the integrity of the blockchain
 Viewing the entire blockchain
 Corrupting the chain (for testing purposes)
 Repairing the chain
+Looking up a block by its hash
+Importing a chain from a dump
 This interface is crucial for implementing the Proxy design pattern,
 allowing for a seamless interaction between the client and the server-side
 blockchain operations.
@@ -26,5 +28,7 @@ public interface BlockchainService {
     String viewBlockchain();
     String corruptChain(int blockId, String newData);
     String repairChain();
+    String getBlockByHash(String hash);
+    String importBlockchain(String dump);
 }
 
@@ -12,11 +12,18 @@ package ds.client;
 
 import ds.message.RequestMessage;
 import ds.message.ResponseMessage;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class BlockchainServiceProxy implements BlockchainService, AutoCloseable {
     // Constants for server connection
@@ -26,7 +33,8 @@ public class BlockchainServiceProxy implements BlockchainService, AutoCloseable
     // Network communication objects
     private Socket socket;
     private PrintWriter out;
-    private BufferedReader in;
+    // Read as bytes, not through a Reader, which would read ahead into a download
+    private BufferedInputStream in;
 
     /**
      * Constructor: Initializes the socket connection and I/O streams
@@ -35,7 +43,7 @@ public class BlockchainServiceProxy implements BlockchainService, AutoCloseable
     public BlockchainServiceProxy() throws IOException {
         this.socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
         this.out = new PrintWriter(socket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.in = new BufferedInputStream(socket.getInputStream());
     }
 
     /**
@@ -52,11 +60,29 @@ public class BlockchainServiceProxy implements BlockchainService, AutoCloseable
         out.println(request.toJson());
 
         // Receive and parse response
-        String responseJson = in.readLine();
+        String responseJson = readLine();
         ResponseMessage response = ResponseMessage.fromJson(responseJson);
         return response.getData();
     }
 
+    /**
+     * Reads one line from the server, without reading past its end
+     * @return The line without its terminator, or null at the end of the stream
+     * @throws IOException if communication fails
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
     /**
      * Retrieves the current status of the blockchain
      * @return Status string or error message
@@ -139,6 +165,65 @@ public class BlockchainServiceProxy implements BlockchainService, AutoCloseable
         }
     }
 
+    /**
+     * Looks up a block by its hash
+     * @param hash The block's hash in hexadecimal
+     * @return The block in JSON format, or a message saying there is no such block
+     */
+    @Override
+    public String getBlockByHash(String hash) {
+        try {
+            return sendRequest(7, hash, "");
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Replaces the server's blockchain with one from a dump
+     * @param dump The chain in the JSON form viewBlockchain returns
+     * @return The number of blocks imported, or why the dump was refused
+     */
+    @Override
+    public String importBlockchain(String dump) {
+        try {
+            return sendRequest(8, dump, "");
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Downloads the whole blockchain into a local file. The server sends it from
+     * its serialized copy on disk, and it is written to the file as it arrives,
+     * so it is never held in memory as a String on either side.
+     * @param file The file to write the chain to, in the JSON form viewBlockchain returns
+     * @return The number of bytes downloaded
+     * @throws IOException if communication fails or the file cannot be written
+     */
+    public long downloadBlockchain(Path file) throws IOException {
+        out.println(new RequestMessage(9, "", "").toJson());
+        ResponseMessage response = ResponseMessage.fromJson(readLine());
+        if (response == null || !"SUCCESS".equals(response.getStatus())) {
+            throw new IOException(response == null ? "Connection closed" : response.getData());
+        }
+        long length = Long.parseLong(response.getData());
+
+        ReadableByteChannel source = Channels.newChannel(in);
+        try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long received = 0;
+            while (received < length) {
+                long read = target.transferFrom(source, received, length - received);
+                if (read == 0) {
+                    throw new EOFException("Connection closed after " + received + " of " + length + " bytes");
+                }
+                received += read;
+            }
+        }
+        return length;
+    }
+
     /**
      * Closes all network resources
      * @throws IOException if closing resources fails
@@ -23,6 +23,9 @@ import ds.message.ResponseMessage;
 
 import java.net.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class ClientTCP {
@@ -67,6 +70,29 @@ public class ClientTCP {
                         break;
                     case 6:
                         return;
+                    case 7:
+                        System.out.print("Enter block hash: ");
+                        result = proxy.getBlockByHash(scanner.nextLine());
+                        break;
+                    case 8:
+                        System.out.print("Enter the file holding the chain dump: ");
+                        String path = scanner.nextLine().trim();
+                        try {
+                            result = proxy.importBlockchain(Files.readString(Paths.get(path)));
+                        } catch (IOException | InvalidPathException e) {
+                            result = "Could not read " + path + ": " + e.getMessage();
+                        }
+                        break;
+                    case 9:
+                        System.out.print("Enter the file to save the chain to: ");
+                        String target = scanner.nextLine().trim();
+                        try {
+                            long bytes = proxy.downloadBlockchain(Paths.get(target));
+                            result = "Downloaded " + bytes + " bytes to " + target;
+                        } catch (IOException | InvalidPathException e) {
+                            result = "Could not download to " + target + ": " + e.getMessage();
+                        }
+                        break;
                     default:
                         result = "Invalid choice";
                 }
@@ -87,6 +113,9 @@ public class ClientTCP {
         System.out.println("4. Corrupt the chain.");
         System.out.println("5. Hide the corruption by repairing the chain.");
         System.out.println("6. Exit.");
+        System.out.println("7. Look up a block by its hash.");
+        System.out.println("8. Import a chain from a dump file.");
+        System.out.println("9. Download the chain to a file.");
         System.out.print("Enter your choice: ");
 
     }
@@ -11,6 +11,13 @@ import com.google.gson.Gson;
  * Note: This code was generated with assistance from Perplexity AI.
  */
 public class RequestMessage {
+    /**
+     * 0 status, 1 add a transaction, 2 verify, 3 view, 4 corrupt, 5 repair,
+     * 7 get a block by its hash (given as data), 8 replace the chain with the
+     * JSON dump given as data (in the form view returns), 9 download the chain:
+     * the response's data is its length in bytes, and that many bytes of the
+     * view form follow the response line.
+     */
     private int operation;
     private String data;
     private String difficulty;
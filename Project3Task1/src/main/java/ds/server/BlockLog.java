@@ -0,0 +1,443 @@
+package ds.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * This class keeps a chain's blocks on disk, so a restarted server carries on
+ * with its chain instead of mining a new genesis block. Blocks are appended as
+ * binary records (see Block.writeRecord) to segment files written through memory
+ * mappings. Every record names the chain position it holds, so a corrupted or
+ * repaired block is appended again rather than overwritten: the log is only ever
+ * appended to, and the latest record for a position wins.
+ *
+ * A small index file maps each position to its latest record, so opening a log
+ * reads the blocks directly, with no JSON to parse and nothing to mine. Its header
+ * records how many positions and how much of the log were on disk at the last
+ * sync. Opening replays the records written after that point, checking each
+ * against its CRC-32C, and cuts the log off at the first torn record. Should an
+ * index entry point past the cut, the index is rebuilt from the whole log.
+ *
+ * Appends reach the disk on the next sync: after every syncEvery appends, or when
+ * sync() or close() is called. A larger batch makes appends cheaper but loses up
+ * to that many blocks if the machine fails.
+ *
+ * Files in the log directory:
+ *   segment-000000.log, ...  records: length, CRC-32C, generation, position, block
+ *   blocks.idx               header, then the location of each position's record
+ */
+public class BlockLog implements Closeable {
+    /** Size of a segment file; a record longer than this gets a segment of its own. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final int INDEX_MAGIC = 0x424c4b49;
+    private static final int FORMAT_VERSION = 1;
+    /** Magic, format version, synced count, synced end, generation, padding. */
+    private static final int INDEX_HEADER = 32;
+    /** Each record starts with the length and CRC-32C of the rest of it. */
+    private static final int RECORD_HEADER = 8;
+    /** Written instead of a length where a segment's records end. */
+    private static final int NEXT_SEGMENT = -1;
+
+    private final Path directory;
+    private final int syncEvery;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final CRC32C crc = new CRC32C();
+    private MappedByteBuffer index;
+    /** Bumped on every open, so records left beyond a cut are never read as new ones. */
+    private int generation;
+    private int count;
+    /** Location just past the last record. */
+    private long end;
+    private int unsynced;
+    private int firstUnsyncedSegment;
+    /** Segment files on disk when the log was opened; recovery maps them only as it reaches them. */
+    private int segmentFiles;
+
+    private BlockLog(Path directory, int syncEvery, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.syncEvery = syncEvery;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        while (Files.exists(segmentFile(segmentFiles))) {
+            segmentFiles++;
+        }
+        Path indexFile = directory.resolve("blocks.idx");
+        long indexSize = Files.exists(indexFile) ? Files.size(indexFile) : 0;
+        index = map(indexFile, Math.max(indexSize, INDEX_HEADER + 8L * 1024));
+        recover();
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed, and syncs after every append.
+     *
+     * @param directory The log directory
+     * @return The log, recovered up to its last complete record
+     */
+    public static BlockLog open(Path directory) {
+        return open(directory, 1, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed.
+     *
+     * @param directory The log directory
+     * @param syncEvery Appends per sync; 1 makes every append durable, 0 syncs only on sync() and close()
+     * @param segmentSize Size of each segment file in bytes
+     * @return The log, recovered up to its last complete record
+     */
+    public static BlockLog open(Path directory, int syncEvery, int segmentSize) {
+        try {
+            return new BlockLog(directory, Math.max(0, syncEvery), segmentSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets the directory holding the log.
+     *
+     * @return The log directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the number of appends batched into one sync.
+     *
+     * @return Appends per sync, or 0 if the log syncs only when asked
+     */
+    public int getSyncEvery() {
+        return syncEvery;
+    }
+
+    /**
+     * Gets the number of chain positions in the log.
+     *
+     * @return The number of blocks
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Gets the number of bytes of records written, including records since
+     * replaced by later ones.
+     *
+     * @return The log length in bytes
+     */
+    public synchronized long getLogBytes() {
+        long bytes = offsetOf(end);
+        for (int i = 0; i < segmentOf(end) && i < segments.size(); i++) {
+            bytes += segments.get(i).capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the latest block stored for a position.
+     *
+     * @param position The chain position
+     * @return A new block, not attached to any chain
+     */
+    public synchronized Block read(int position) {
+        if (position < 0 || position >= count) {
+            throw new IndexOutOfBoundsException("No block " + position + " in a log of " + count);
+        }
+        long location = index.getLong(entryOffset(position));
+        return Block.readRecord(segments.get(segmentOf(location)), offsetOf(location) + RECORD_HEADER + 8);
+    }
+
+    /**
+     * Gets where the latest record for a position is, for reading its data back
+     * with readData. Records are never moved or overwritten, so the location
+     * keeps naming the same block after the position is replaced.
+     *
+     * @param position The chain position
+     * @return The record's location
+     */
+    public synchronized long locationOf(int position) {
+        if (position < 0 || position >= count) {
+            throw new IndexOutOfBoundsException("No block " + position + " in a log of " + count);
+        }
+        return index.getLong(entryOffset(position));
+    }
+
+    /**
+     * Reads just the data of the block in a record (see BodyStore).
+     *
+     * @param location A location from locationOf
+     * @return The block's data, or null if it has none
+     */
+    public synchronized byte[] readData(long location) {
+        return Block.readRecordData(segments.get(segmentOf(location)), offsetOf(location) + RECORD_HEADER + 8);
+    }
+
+    /**
+     * Reads every block in the log, in chain order.
+     *
+     * @return New blocks, not attached to any chain
+     */
+    public synchronized Block[] readAll() {
+        Block[] blocks = new Block[count];
+        for (int i = 0; i < count; i++) {
+            long location = index.getLong(entryOffset(i));
+            blocks[i] = Block.readRecord(segments.get(segmentOf(location)), offsetOf(location) + RECORD_HEADER + 8);
+        }
+        return blocks;
+    }
+
+    /**
+     * Appends a block for a chain position: either the position just past the
+     * end, for a new block, or a position already in the log, for a block that
+     * replaces it.
+     *
+     * @param position The block's chain position, at most size()
+     * @param block The block
+     */
+    public synchronized void append(int position, Block block) {
+        write(position, block);
+        if (unsynced == syncEvery) {
+            sync();
+        }
+    }
+
+    /**
+     * Appends blocks for consecutive chain positions and syncs once they are all
+     * written, however often the log syncs otherwise.
+     *
+     * @param position The first block's chain position, at most size()
+     * @param blocks The blocks
+     */
+    public synchronized void appendAll(int position, Block[] blocks) {
+        for (int i = 0; i < blocks.length; i++) {
+            write(position + i, blocks[i]);
+        }
+        sync();
+    }
+
+    /**
+     * Writes a block's record and points the index at it.
+     */
+    private void write(int position, Block block) {
+        if (position < 0 || position > count) {
+            throw new IllegalArgumentException("Position " + position + " is not in a log of " + count);
+        }
+        int length = 8 + block.recordLength();
+        try {
+            int segment = segmentOf(end);
+            int offset = offsetOf(end);
+            if (segment == segments.size() || offset + RECORD_HEADER + length + 4 > segments.get(segment).capacity()) {
+                if (segment < segments.size()) {
+                    segments.get(segment).putInt(offset, NEXT_SEGMENT);
+                    segment++;
+                }
+                segments.add(map(segmentFile(segment), Math.max(segmentSize, RECORD_HEADER + length + 4)));
+                offset = 0;
+                end = location(segment, 0);
+            }
+
+            // The length goes in last, so a record cut short by a crash has none
+            MappedByteBuffer buffer = segments.get(segment);
+            int body = offset + RECORD_HEADER;
+            buffer.putInt(body, generation);
+            buffer.putInt(body + 4, position);
+            block.writeRecord(buffer, body + 8);
+            buffer.putInt(offset + 4, checksum(buffer, body, length));
+            buffer.putInt(offset, length);
+
+            ensureIndexCapacity(position + 1);
+            index.putLong(entryOffset(position), end);
+            if (position == count) {
+                count++;
+            }
+            end += RECORD_HEADER + length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        unsynced++;
+    }
+
+    /**
+     * Forces every append so far to disk, records first and then the index,
+     * and records in the index header how far the log is known to be durable.
+     */
+    public synchronized void sync() {
+        if (unsynced == 0) {
+            return;
+        }
+        for (int i = firstUnsyncedSegment; i < segments.size(); i++) {
+            segments.get(i).force();
+        }
+        index.force();
+        index.putLong(8, count);
+        index.putLong(16, end);
+        index.force(0, INDEX_HEADER);
+        firstUnsyncedSegment = Math.max(0, segments.size() - 1);
+        unsynced = 0;
+    }
+
+    /**
+     * Syncs the log. The mappings are released once the log is no longer referenced.
+     */
+    @Override
+    public void close() {
+        sync();
+    }
+
+    /**
+     * Brings the index up to date with the records on disk and cuts off a torn tail.
+     */
+    private void recover() throws IOException {
+        long syncedEnd = 0;
+        if (index.getInt(0) == INDEX_MAGIC) {
+            if (index.getInt(4) != FORMAT_VERSION) {
+                throw new IllegalStateException("Unsupported block log version " + index.getInt(4) + " in " + directory);
+            }
+            count = (int) index.getLong(8);
+            syncedEnd = index.getLong(16);
+            generation = index.getInt(24);
+        }
+        boolean rebuild = syncedEnd != 0 && (segmentOf(syncedEnd) >= segmentFiles
+                || offsetOf(syncedEnd) > Files.size(segmentFile(segmentOf(syncedEnd))));
+        if (!rebuild) {
+            mapSegments(segmentOf(syncedEnd));
+            end = replay(syncedEnd);
+            // Entries may have been updated for records that did not survive
+            for (int i = 0; i < count && !rebuild; i++) {
+                rebuild = index.getLong(entryOffset(i)) >= end;
+            }
+        }
+        if (rebuild) {
+            count = 0;
+            mapSegments(0);
+            end = replay(0);
+        }
+
+        // Segments past the cut only hold records that can no longer be reached.
+        // A mapped file cannot be deleted everywhere (Windows refuses), and Java
+        // cannot unmap one, so only segments recovery never mapped are deleted.
+        // One mapped by a pass that was then rebuilt over is just dropped: its
+        // records are of older generations, so they are never read as new ones.
+        for (int i = segmentFiles - 1; i > segmentOf(end); i--) {
+            if (i < segments.size()) {
+                segments.remove(i);
+            } else {
+                Files.delete(segmentFile(i));
+            }
+        }
+        firstUnsyncedSegment = Math.max(0, segments.size() - 1);
+
+        generation++;
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, FORMAT_VERSION);
+        index.putLong(8, count);
+        index.putLong(16, end);
+        index.putInt(24, generation);
+        index.force();
+    }
+
+    /**
+     * Applies the records from a location on to the index, up to the first record
+     * that is missing, torn, older than the one before it, or for a position past the end.
+     *
+     * @return The location just past the last good record
+     */
+    private long replay(long from) throws IOException {
+        long location = from;
+        int lastGeneration = 0;
+        while (segmentOf(location) < segments.size()) {
+            MappedByteBuffer buffer = segments.get(segmentOf(location));
+            int offset = offsetOf(location);
+            if (offset + 4 > buffer.capacity()) {
+                break;
+            }
+            int length = buffer.getInt(offset);
+            if (length == NEXT_SEGMENT && segmentOf(location) + 1 < segmentFiles) {
+                mapSegments(segmentOf(location) + 1);
+                location = location(segmentOf(location) + 1, 0);
+                continue;
+            }
+            if (length < 8 || length > buffer.capacity() - offset - RECORD_HEADER
+                    || checksum(buffer, offset + RECORD_HEADER, length) != buffer.getInt(offset + 4)) {
+                break;
+            }
+            int recordGeneration = buffer.getInt(offset + RECORD_HEADER);
+            int position = buffer.getInt(offset + RECORD_HEADER + 4);
+            if (recordGeneration < lastGeneration || position < 0 || position > count) {
+                break;
+            }
+            lastGeneration = recordGeneration;
+            ensureIndexCapacity(position + 1);
+            index.putLong(entryOffset(position), location);
+            if (position == count) {
+                count++;
+            }
+            location += RECORD_HEADER + length;
+        }
+        return location;
+    }
+
+    /**
+     * Maps the segment files up to and including the given one that are not mapped yet.
+     */
+    private void mapSegments(int last) throws IOException {
+        while (segments.size() <= last && segments.size() < segmentFiles) {
+            Path file = segmentFile(segments.size());
+            segments.add(map(file, Files.size(file)));
+        }
+    }
+
+    private int checksum(MappedByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Maps a larger index file when it has no room for another entry.
+     */
+    private void ensureIndexCapacity(int entries) throws IOException {
+        if (entryOffset(entries) > index.capacity()) {
+            index.force();
+            index = map(directory.resolve("blocks.idx"), Math.max(entryOffset(entries), 2L * index.capacity()));
+        }
+    }
+
+    private Path segmentFile(int segment) {
+        return directory.resolve(String.format("segment-%06d.log", segment));
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int entryOffset(int position) {
+        return INDEX_HEADER + 8 * position;
+    }
+
+    private static long location(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+}
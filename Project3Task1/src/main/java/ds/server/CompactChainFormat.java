@@ -0,0 +1,302 @@
+package ds.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * This class writes and reads chains in a compact binary form for storage and
+ * export. A block's hash follows from its fields, and its previous hash from the
+ * block before it, so neither is stored: each block is written as its index and
+ * timestamp as deltas from the block before, its nonce, its difficulty and its
+ * data, using variable-length integers. Hashes are recomputed while reading.
+ *
+ * Recomputing them is a chain of dependencies, since every hash covers the
+ * previous one, so the blocks are split into runs of RUN_LENGTH. The first block
+ * of each run stores its previous hash in full, and the header lists the length
+ * of every run, so runs are decoded and hashed on all cores at once. A block
+ * whose previous hash does not match the block before it, e.g. a corrupted
+ * one, stores its previous hash too, so the chain read back is the chain written.
+ *
+ * Layout, integers as unsigned LEB128 varints unless noted:
+ *   magic (4 bytes), format version (1 byte), block count, run length, byte length of each run
+ *   per block: flags (1 byte), index delta*, timestamp delta*, nonce, difficulty*, data length, data,
+ *              [unit, algorithm, header version], [previous hash]        (* zigzag encoded)
+ */
+public class CompactChainFormat {
+    /** Blocks per run; the first block of a run stores its previous hash. */
+    public static final int RUN_LENGTH = 4096;
+
+    private static final int MAGIC = 0x424c4b43;
+    private static final int FORMAT_VERSION = 1;
+
+    /** Flag bits 0-1: where the previous hash comes from. */
+    private static final int PREVIOUS_DERIVED = 0;
+    private static final int PREVIOUS_NULL = 1;
+    private static final int PREVIOUS_DIGEST = 2;
+    private static final int PREVIOUS_TEXT = 3;
+    /** Flag: the difficulty unit, hash algorithm and header version follow. */
+    private static final int ATTRIBUTES = 4;
+    /** Flag: the block has no data. */
+    private static final int NO_DATA = 8;
+
+    private static final DifficultyUnit[] UNITS = DifficultyUnit.values();
+    private static final HashAlgorithm[] ALGORITHMS = HashAlgorithm.values();
+
+    private CompactChainFormat() {
+    }
+
+    /**
+     * Writes the blocks of a snapshot in the compact format.
+     *
+     * @param chain The chain to write
+     * @param out The stream to write to; it is not closed
+     * @throws IOException if the stream fails
+     */
+    public static void write(ChainSnapshot chain, OutputStream out) throws IOException {
+        int size = chain.getChainSize();
+        List<byte[]> runs = new ArrayList<>();
+        for (int start = 0; start < size; start += RUN_LENGTH) {
+            runs.add(encodeRun(chain, start, Math.min(size, start + RUN_LENGTH)));
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeVarLong(header, size);
+        writeVarLong(header, RUN_LENGTH);
+        for (byte[] run : runs) {
+            writeVarLong(header, run.length);
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(FORMAT_VERSION);
+        header.writeTo(data);
+        for (byte[] run : runs) {
+            data.write(run);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads blocks written by write(), recomputing their hashes.
+     *
+     * @param in The stream to read; it is read to the end but not closed
+     * @return The blocks in chain order, not attached to any chain
+     * @throws IOException if the stream fails or does not hold a compact chain
+     */
+    public static Block[] read(InputStream in) throws IOException {
+        Reader reader = new Reader(in.readAllBytes());
+        try {
+            if (reader.bytes.length < 5 || reader.int32() != MAGIC) {
+                throw new IOException("Not a compact chain");
+            }
+            int version = reader.bytes[reader.position++];
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported compact chain version " + version);
+            }
+            int size = (int) reader.varLong();
+            int runLength = (int) reader.varLong();
+            if (size < 0 || runLength <= 0) {
+                throw new IOException("Corrupt compact chain header");
+            }
+            int runs = (size + runLength - 1) / runLength;
+            int[] offsets = new int[runs + 1];
+            for (int run = 0; run < runs; run++) {
+                offsets[run + 1] = offsets[run] + (int) reader.varLong();
+            }
+            int base = reader.position;
+
+            Block[] blocks = new Block[size];
+            IntStream.range(0, runs).parallel().forEach(run -> decodeRun(
+                    new Reader(reader.bytes, base + offsets[run]), blocks, run * runLength,
+                    Math.min(size, (run + 1) * runLength)));
+            return blocks;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt compact chain", e);
+        }
+    }
+
+    /**
+     * Encodes the blocks from start up to end as one run.
+     */
+    private static byte[] encodeRun(ChainSnapshot chain, int start, int end) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = start; i < end; i++) {
+            Block block = chain.getBlock(i);
+            Block previous = i > start ? chain.getBlock(i - 1) : null;
+            String previousHash = block.getPreviousHash();
+            byte[] digest = null;
+
+            int flags;
+            if (previous != null && block.linksTo(previous)) {
+                flags = PREVIOUS_DERIVED;
+            } else if (previousHash == null) {
+                flags = PREVIOUS_NULL;
+            } else {
+                digest = previousHash.length() == 64 ? HeaderHasher.fromHex(previousHash) : null;
+                // Only lowercase digests are kept as bytes (see Block), so only they come back the same
+                flags = digest != null && HeaderHasher.toHex(digest).equals(previousHash) ? PREVIOUS_DIGEST : PREVIOUS_TEXT;
+            }
+            boolean attributes = previous == null || block.getDifficultyUnit() != previous.getDifficultyUnit()
+                    || block.getHashAlgorithm() != previous.getHashAlgorithm()
+                    || block.getHeaderVersion() != previous.getHeaderVersion();
+            if (attributes) {
+                flags |= ATTRIBUTES;
+            }
+            String data = block.peekData();
+            if (data == null) {
+                flags |= NO_DATA;
+            }
+
+            out.write(flags);
+            writeVarLong(out, zigzag(previous != null ? block.getIndex() - (previous.getIndex() + 1L) : block.getIndex()));
+            long timestamp = block.getTimestamp().getTime();
+            writeVarLong(out, zigzag(previous != null ? timestamp - previous.getTimestamp().getTime() : timestamp));
+            writeVarLong(out, block.getNonce().longValue());
+            writeVarLong(out, zigzag(block.getDifficulty()));
+            if (data != null) {
+                writeBytes(out, data.getBytes(StandardCharsets.UTF_8));
+            }
+            if (attributes) {
+                out.write(block.getDifficultyUnit().ordinal());
+                out.write(block.getHashAlgorithm().ordinal());
+                out.write(block.getHeaderVersion());
+            }
+            if ((flags & 3) == PREVIOUS_DIGEST) {
+                out.write(digest, 0, digest.length);
+            } else if ((flags & 3) == PREVIOUS_TEXT) {
+                writeBytes(out, previousHash.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes one run into blocks[start] up to blocks[end - 1], hashing each
+     * block as the next one links to it.
+     */
+    private static void decodeRun(Reader in, Block[] blocks, int start, int end) {
+        Block previous = null;
+        long index = -1;
+        long timestamp = 0;
+        DifficultyUnit unit = null;
+        HashAlgorithm algorithm = null;
+        int headerVersion = 0;
+        for (int i = start; i < end; i++) {
+            int flags = in.bytes[in.position++];
+            index += unzigzag(in.varLong()) + 1;
+            timestamp += unzigzag(in.varLong());
+            long nonce = in.varLong();
+            int difficulty = (int) unzigzag(in.varLong());
+            byte[] data = (flags & NO_DATA) == 0 ? in.bytes(in.varInt()) : null;
+            if ((flags & ATTRIBUTES) != 0) {
+                unit = UNITS[in.bytes[in.position++]];
+                algorithm = ALGORITHMS[in.bytes[in.position++]];
+                headerVersion = in.bytes[in.position++];
+            }
+
+            Block block = new Block((int) index, timestamp, data, nonce, difficulty, unit, algorithm, headerVersion);
+            switch (flags & 3) {
+                case PREVIOUS_DERIVED:
+                    block.linkTo(previous);
+                    break;
+                case PREVIOUS_NULL:
+                    block.setPreviousHash(null);
+                    break;
+                case PREVIOUS_DIGEST:
+                    block.setPreviousHash(HeaderHasher.toHex(in.bytes(32)));
+                    break;
+                default:
+                    block.setPreviousHash(new String(in.bytes(in.varInt()), StandardCharsets.UTF_8));
+                    break;
+            }
+            blocks[i] = block;
+            previous = block;
+        }
+        if (previous != null) {
+            previous.hashBytes();
+        }
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A cursor over the bytes read. Reading past the end throws
+     * ArrayIndexOutOfBoundsException, which read() reports as a corrupt chain.
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        private Reader(byte[] bytes) {
+            this(bytes, 0);
+        }
+
+        private Reader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        private int int32() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = value << 8 | (bytes[position++] & 0xff);
+            }
+            return value;
+        }
+
+        private long varLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        private int varInt() {
+            long value = varLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Length out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        private byte[] bytes(int length) {
+            if (length > bytes.length - position) {
+                throw new ArrayIndexOutOfBoundsException("Length " + length + " past the end");
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, position, copy, 0, length);
+            position += length;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ds.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This enum lists the hash algorithms a BlockChain can be created with.
+ * Every option produces a 256 bit digest, so hashes stay 64 hex characters and the
+ * difficulty rules are unchanged. SHA-512/256 works on 64 bit words and is often
+ * faster per byte than SHA-256 on 64 bit machines without SHA instructions, which
+ * matters for large transaction payloads.
+ */
+public enum HashAlgorithm {
+    SHA_256("SHA-256", 64),
+    SHA_512_256("SHA-512/256", 128),
+    SHA3_256("SHA3-256", 136);
+
+    private final String id;
+    private final int blockSize;
+
+    HashAlgorithm(String id, int blockSize) {
+        this.id = id;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Gets the standard name of the algorithm, which is also its MessageDigest name
+     * and the id recorded with a chain.
+     *
+     * @return The algorithm id, e.g. "SHA-256"
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the number of input bytes the algorithm absorbs per compression step.
+     *
+     * @return The block (or sponge rate) size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Creates a new MessageDigest for this algorithm.
+     *
+     * @return A fresh MessageDigest
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(id);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Looks up an algorithm by its id.
+     *
+     * @param id The algorithm id, e.g. "SHA3-256"
+     * @return The matching algorithm
+     * @throws IllegalArgumentException if no algorithm has that id
+     */
+    public static HashAlgorithm fromId(String id) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id.equals(id)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unknown hash algorithm: " + id);
+    }
+}
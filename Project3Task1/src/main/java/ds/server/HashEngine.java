@@ -0,0 +1,91 @@
+package ds.server;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * This enum lists the SHA-256 implementations the miner can hash block headers with.
+ * Every engine produces the same digests and finds the same nonce, so the choice
+ * only affects speed. Only JDK supports every HashAlgorithm; the others implement
+ * SHA-256 alone, and blocks of other algorithms are always hashed with JDK.
+ *
+ * VECTOR is experimental. VectorHeaderHasher needs the jdk.incubator.vector module,
+ * which is only resolved when the JVM is started with
+ * --add-modules jdk.incubator.vector, so it is loaded by name on first use. When the
+ * module or the class is missing, VECTOR quietly falls back to the JDK engine.
+ */
+public enum HashEngine {
+    /** The JDK MessageDigest, which HotSpot can run on the CPU's SHA instructions. */
+    JDK,
+    /** The in-tree Sha256 compressor, specialised for block headers. */
+    IN_TREE,
+    /** Several nonces per step, one per lane, using the incubating Java Vector API. */
+    VECTOR;
+
+    /**
+     * Gets the calling thread's SHA-256 hasher for this engine.
+     *
+     * @return The NonceHasher owned by the calling thread
+     */
+    public NonceHasher hasherForCurrentThread() {
+        return hasherForCurrentThread(HashAlgorithm.SHA_256);
+    }
+
+    /**
+     * Gets the calling thread's hasher for this engine and a hash algorithm.
+     *
+     * @param algorithm The hash algorithm of the block to be mined
+     * @return The NonceHasher owned by the calling thread
+     */
+    public NonceHasher hasherForCurrentThread(HashAlgorithm algorithm) {
+        if (algorithm != HashAlgorithm.SHA_256) {
+            return HeaderHasher.forCurrentThread();
+        }
+        switch (this) {
+            case IN_TREE:
+                return Sha256HeaderHasher.forCurrentThread();
+            case VECTOR:
+                if (VectorBackend.FACTORY != null) {
+                    return VectorBackend.PER_THREAD.get();
+                }
+                return HeaderHasher.forCurrentThread();
+            default:
+                return HeaderHasher.forCurrentThread();
+        }
+    }
+
+    /**
+     * Tells whether this engine can run in the current JVM rather than falling back.
+     *
+     * @return true if hashing with this engine uses its own implementation
+     */
+    public boolean isAvailable() {
+        return this != VECTOR || VectorBackend.FACTORY != null;
+    }
+
+    /**
+     * Holds the Vector API hasher, loaded the first time VECTOR is used.
+     */
+    private static class VectorBackend {
+        private static final Constructor<?> FACTORY = load();
+        private static final ThreadLocal<NonceHasher> PER_THREAD = ThreadLocal.withInitial(() -> {
+            try {
+                return (NonceHasher) FACTORY.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        private static Constructor<?> load() {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+                return null;
+            }
+            String packageName = HashEngine.class.getPackageName();
+            String className = packageName.isEmpty() ? "VectorHeaderHasher" : packageName + ".VectorHeaderHasher";
+            try {
+                return Class.forName(className).getDeclaredConstructor();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+}
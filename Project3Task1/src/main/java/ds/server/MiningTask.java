@@ -0,0 +1,224 @@
+package ds.server;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the handle returned by BlockChain.addBlockAsync(). It completes
+ * with the block once the block has been mined and appended to the chain.
+ * While the block is being mined it reports the number of nonces tried so far,
+ * the time spent, and an estimate of the total mining time based on the block's
+ * expected work and the chain's hashes per second.
+ *
+ * Cancelling the task, or letting its timeout pass, makes the miner threads stop
+ * at their next chunk of nonces. A cancelled or timed out block is never appended:
+ * the task either completes with the appended block or not at all.
+ */
+public class MiningTask implements Future<Block> {
+    private static final int QUEUED = 0;
+    private static final int MINING = 1;
+    private static final int APPENDING = 2;
+    private static final int CANCELLED = 3;
+    private static final int TIMED_OUT = 4;
+    private static final int FAILED = 5;
+
+    private final Block block;
+    private final int hashesPerSecond;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private final AtomicLong attempts = new AtomicLong();
+    private final CompletableFuture<Block> result = new CompletableFuture<>();
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * Creates a task for a block that has not started mining yet.
+     *
+     * @param block The block to be mined
+     * @param hashesPerSecond The chain's hashes per second, used for the estimate
+     * @param timeoutNanos How long the task may take from now, or 0 for no limit
+     */
+    MiningTask(Block block, int hashesPerSecond, long timeoutNanos) {
+        this.block = block;
+        this.hashesPerSecond = Math.max(1, hashesPerSecond);
+        this.deadline = timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0;
+    }
+
+    /**
+     * Gets the block this task is mining.
+     *
+     * @return The block
+     */
+    public Block getBlock() {
+        return block;
+    }
+
+    /**
+     * Gets the number of nonces tried so far. It is updated once per chunk of
+     * nonces, so it lags slightly behind the miner threads.
+     *
+     * @return The number of hashes computed for this block
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * Gets the time spent mining. Time spent queued behind other blocks is not counted.
+     *
+     * @return The elapsed time in milliseconds, or 0 if mining has not started
+     */
+    public long getElapsedMillis() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endNanos;
+        return ((end != 0 ? end : System.nanoTime()) - start) / 1_000_000;
+    }
+
+    /**
+     * Estimates how long mining the block takes in total, from the expected
+     * number of hashes for its difficulty and the chain's hashes per second.
+     *
+     * @return The estimated total mining time in milliseconds
+     */
+    public long getEstimatedTotalMillis() {
+        return (long) Math.min(Long.MAX_VALUE, block.getExpectedHashes() * 1000 / hashesPerSecond);
+    }
+
+    /**
+     * Estimates how much longer mining takes. Once the estimate is overrun it
+     * stays at 0: every nonce is an independent try, so a block that is late is
+     * not any closer to being found.
+     *
+     * @return The estimated remaining time in milliseconds, or 0 once the task is done
+     */
+    public long getEstimatedRemainingMillis() {
+        if (isDone()) {
+            return 0;
+        }
+        return Math.max(0, getEstimatedTotalMillis() - getElapsedMillis());
+    }
+
+    /**
+     * Checks whether the task was stopped because its timeout passed.
+     *
+     * @return true if the task timed out
+     */
+    public boolean isTimedOut() {
+        return state.get() == TIMED_OUT;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (stop(CANCELLED)) {
+            result.completeExceptionally(new CancellationException("Mining cancelled"));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        int current = state.get();
+        return current == CANCELLED || current == TIMED_OUT;
+    }
+
+    @Override
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    @Override
+    public Block get() throws InterruptedException, ExecutionException {
+        return result.get();
+    }
+
+    @Override
+    public Block get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return result.get(timeout, unit);
+    }
+
+    /**
+     * Marks the task as mining. Called on the miner thread before the proof of work starts.
+     *
+     * @return false if the task was cancelled or timed out while queued
+     */
+    boolean begin() {
+        if (stopRequested() || !state.compareAndSet(QUEUED, MINING)) {
+            return false;
+        }
+        startNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Adds a chunk of tried nonces to the attempt count.
+     */
+    void addAttempts(long count) {
+        attempts.addAndGet(count);
+    }
+
+    /**
+     * Checks whether the miner should give up, timing the task out if its deadline has passed.
+     *
+     * @return true if the task was cancelled or timed out
+     */
+    boolean stopRequested() {
+        if (deadline != 0 && System.nanoTime() - deadline > 0 && stop(TIMED_OUT)) {
+            result.completeExceptionally(new TimeoutException("Mining timed out"));
+        }
+        return isCancelled();
+    }
+
+    /**
+     * Claims the right to append the mined block. Once this succeeds the task
+     * can no longer be cancelled.
+     *
+     * @return false if the task was cancelled or timed out first
+     */
+    boolean beginAppend() {
+        return state.compareAndSet(MINING, APPENDING);
+    }
+
+    /**
+     * Completes the task with the appended block.
+     */
+    void complete() {
+        endNanos = System.nanoTime();
+        result.complete(block);
+    }
+
+    /**
+     * Completes the task with the error that stopped it.
+     */
+    void fail(Throwable error) {
+        if (stop(FAILED)) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Moves a task that has not started appending to a stopped state.
+     */
+    private boolean stop(int stoppedState) {
+        int current;
+        do {
+            current = state.get();
+            if (current != QUEUED && current != MINING) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, stoppedState));
+        if (startNanos != 0) {
+            endNanos = System.nanoTime();
+        }
+        return true;
+    }
+}
@@ -7,6 +7,12 @@
  * and offers methods to interact with the blockchain, including adding
  * transactions, verifying the chain, viewing the blockchain, and more.
  *
+ * The chain, mining checkpoint, measured hash rates and download copy are kept
+ * in a data directory: ~/.blockchain by default, or the one named by the
+ * blockchain.dir system property (e.g. -Dblockchain.dir=/var/lib/blockchain).
+ * Setting blockchain.dir empty keeps nothing on disk, so the chain starts from
+ * a genesis block every time.
+ *
  * NOTE : This code is generated with assisstance from Perplexity AI.
  *
  */
@@ -15,49 +21,152 @@ package ds.server;
 
 import ds.client.BlockchainService;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 public class RealBlockchainService implements BlockchainService {
+    /**
+     * The longest a single block may be mined for before the request gives up,
+     * so one high difficulty request cannot hold the server indefinitely.
+     */
+    private static final long MINING_TIMEOUT_SECONDS = 60;
+    /**
+     * The system property naming the data directory; set empty to keep nothing on disk.
+     */
+    public static final String DATA_DIRECTORY_PROPERTY = "blockchain.dir";
+    /**
+     * The data directory used when blockchain.dir is not set.
+     */
+    private static final Path DEFAULT_DATA_DIRECTORY = Paths.get(System.getProperty("user.home"), ".blockchain");
     /**
      * The blockchain instance managed by this service.
      */
     private BlockChain blockchain;
     /**
-     * Constructor for RealBlockchainService.
-     * Initializes the blockchain and adds a genesis block.
+     * Where the chain is kept serialized for downloads (see BlockChain.exportJson),
+     * or null until a temporary file is made for the first download.
+     */
+    private Path dumpFile;
+    /**
+     * Constructor for RealBlockchainService, keeping its data in the directory
+     * the blockchain.dir system property names (see dataDirectoryFromProperty).
      */
     public RealBlockchainService() {
+        this(dataDirectoryFromProperty());
+    }
+    /**
+     * Constructor for RealBlockchainService.
+     * Reopens the blockchain kept in the data directory, or starts one with a
+     * genesis block, and keeps only its block headers on the heap. Mining progress
+     * is checkpointed, so a block interrupted by a restart carries on where it was.
+     * The directory holds:
+     *   chain/                the chain (see BlockLog)
+     *   checkpoint.dat        progress of the block being mined (see MiningCheckpoint)
+     *   hashrate.properties   measured hash rates, keyed by host and JVM (see HashRateCache)
+     *   chain.json            the chain serialized for downloads (see BlockChain.exportJson)
+     *
+     * @param dataDirectory The data directory, or null to keep nothing on disk
+     */
+    public RealBlockchainService(Path dataDirectory) {
         this.blockchain = new BlockChain();
-        Block genesisBlock = new Block(0, blockchain.getTime(), "Genesis", 2);
-        blockchain.addBlock(genesisBlock);
+        if (dataDirectory != null) {
+            blockchain.setHashRateCache(new HashRateCache(dataDirectory.resolve("hashrate.properties")));
+            blockchain.setCheckpoint(new MiningCheckpoint(dataDirectory.resolve("checkpoint.dat")));
+            blockchain.open(BlockLog.open(dataDirectory.resolve("chain")));
+            dumpFile = dataDirectory.resolve("chain.json");
+        }
+        if (blockchain.getChainSize() == 0) {
+            Block genesisBlock = new Block(0, blockchain.getTime(), "Genesis", 2);
+            blockchain.addBlock(genesisBlock);
+        }
+        if (dataDirectory != null) {
+            // Block bodies are read back from the log, so reopening writes nothing
+            blockchain.setBodyStore(BodyStore.open(blockchain.getBlockLog()));
+        }
+        // Measure the hash rate in the background once startup mining is done, so the two don't compete
+        blockchain.calibrate();
+    }
+    /**
+     * Gets the data directory the blockchain.dir system property names.
+     *
+     * @return The directory, ~/.blockchain if the property is not set, or null if it is set empty
+     */
+    public static Path dataDirectoryFromProperty() {
+        String directory = System.getProperty(DATA_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return DEFAULT_DATA_DIRECTORY;
+        }
+        return directory.isEmpty() ? null : Paths.get(directory);
+    }
+    /**
+     * Brings the serialized copy of the blockchain on disk up to date, so it can
+     * be sent to a client as it is.
+     *
+     * @return The file holding the chain in the JSON form viewBlockchain returns
+     * @throws IOException if the file cannot be written
+     */
+    public Path exportBlockchain() throws IOException {
+        if (dumpFile == null) {
+            dumpFile = Files.createTempFile("blockchain", ".json");
+            dumpFile.toFile().deleteOnExit();
+        }
+        blockchain.exportJson(dumpFile);
+        return dumpFile;
     }
     /**
      * Retrieves the current status of the blockchain.
      *
      * @return A string containing information about the blockchain's current state,
      *         including chain size, difficulty, total difficulty, hashes per second,
-     *         expected total hashes, nonce of the latest block, and the chain hash.
+     *         expected total hashes, nonce of the latest block, heap use, body
+     *         cache hit rate, and the chain hash.
      */
     @Override
     public String getBlockchainStatus() {
-        return "Current size of chain: " + blockchain.getChainSize() + "\n" +
-                "Difficulty of most recent block: " + blockchain.getLatestBlock().getDifficulty() + "\n" +
-                "Total difficulty for all blocks: " + blockchain.getTotalDifficulty() + "\n" +
+        ChainSnapshot chain = blockchain.snapshot();
+        BodyStore bodies = blockchain.getBodyStore();
+        return "Current size of chain: " + chain.getChainSize() + "\n" +
+                "Difficulty of most recent block: " + chain.getLatestBlock().getDifficulty() + "\n" +
+                "Total difficulty for all blocks: " + chain.getTotalDifficulty() + "\n" +
+                "Average difficulty per block: " + chain.getAverageDifficulty() + "\n" +
                 "Approximate hashes per second on this machine: " + blockchain.getHashesPerSecond() + "\n" +
-                "Expected total hashes required for the whole chain: " + blockchain.getTotalExpectedHashes() + "\n" +
-                "Nonce for most recent block: " + blockchain.getLatestBlock().getNonce() + "\n" +
-                "Chain hash: " + blockchain.getChainHash();
+                "Expected total hashes required for the whole chain: " + chain.getTotalExpectedHashes() + "\n" +
+                "Nonce for most recent block: " + chain.getLatestBlock().getNonce() + "\n" +
+                "Estimated heap used by blocks: " + blockchain.getHeapBytes() + " bytes\n" +
+                "Body cache hit rate: " + (bodies != null ? String.format("%.1f%%", bodies.getHitRate() * 100) : "no body store") + "\n" +
+                "Chain hash: " + chain.getChainHash();
     }
     /**
      * Adds a new transaction to the blockchain.
      *
      * @param data The data to be included in the new block.
      * @param difficulty The mining difficulty for the new block.
-     * @return A string indicating the success of the operation.
+     * @return A string indicating the success of the operation, or that mining
+     *         timed out and the block was not added.
      */
     @Override
     public String addTransaction(String data, int difficulty) {
         Block newBlock = new Block(blockchain.getChainSize(), blockchain.getTime(), data, difficulty);
-        blockchain.addBlock(newBlock);
-        return "Block added successfully";
+        MiningTask task = blockchain.addBlockAsync(newBlock, MINING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try {
+            task.get();
+            return "Block added successfully";
+        } catch (ExecutionException e) {
+            if (task.isTimedOut()) {
+                return "Mining timed out after " + MINING_TIMEOUT_SECONDS + " seconds (" + task.getAttempts()
+                        + " hashes tried, estimated " + task.getEstimatedTotalMillis() / 1000
+                        + " seconds needed); block not added";
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
     }
     /**
      * Verifies the integrity of the entire blockchain.
@@ -86,9 +195,7 @@ public class RealBlockchainService implements BlockchainService {
      */
     @Override
     public String corruptChain(int blockId, String newData) {
-        Block blockToCorrupt = blockchain.getBlock(blockId);
-        if (blockToCorrupt != null) {
-            blockToCorrupt.setData(newData);
+        if (blockchain.setBlockData(blockId, newData)) {
             return "Block " + blockId + " corrupted";
         } else {
             return "Invalid block ID";
@@ -101,8 +208,33 @@ public class RealBlockchainService implements BlockchainService {
      */
     @Override
     public String repairChain() {
-        blockchain.repairChain();
-        return "Chain repaired";
+        RepairReport report = blockchain.repairChain();
+        return "Chain repaired: " + report;
+    }
+    /**
+     * Looks up a block by its hash.
+     *
+     * @param hash The block's hash in hexadecimal.
+     * @return The block in JSON format, or a message saying there is no such block.
+     */
+    @Override
+    public String getBlockByHash(String hash) {
+        Block block = blockchain.getBlockByHash(hash.trim());
+        return block != null ? block.toString() : "No block with hash " + hash;
+    }
+    /**
+     * Replaces the blockchain with one from a dump, without mining it again.
+     *
+     * @param dump The chain in the JSON form viewBlockchain returns.
+     * @return The number of blocks imported, or why the dump was refused.
+     */
+    @Override
+    public String importBlockchain(String dump) {
+        try {
+            return "Imported " + blockchain.importJson(dump) + " blocks";
+        } catch (IOException | IllegalStateException e) {
+            return "Import failed: " + e.getMessage();
+        }
     }
 }
 
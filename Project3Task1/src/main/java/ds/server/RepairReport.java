@@ -0,0 +1,65 @@
+package ds.server;
+
+/**
+ * This class describes what BlockChain.repairChain() had to do: where the first
+ * broken block was, how many blocks were mined again, and how many hashes that took.
+ */
+public class RepairReport {
+    private final int firstInvalidBlock;
+    private final int blocksRemined;
+    private final long hashes;
+
+    /**
+     * Creates a report.
+     *
+     * @param firstInvalidBlock The position of the first broken block, or -1 if none was broken
+     * @param blocksRemined The number of blocks whose proof of work was redone
+     * @param hashes The number of hashes computed while mining them
+     */
+    public RepairReport(int firstInvalidBlock, int blocksRemined, long hashes) {
+        this.firstInvalidBlock = firstInvalidBlock;
+        this.blocksRemined = blocksRemined;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Gets the position of the first broken block. Blocks before it were left untouched.
+     *
+     * @return The position, or -1 if the chain was already valid
+     */
+    public int getFirstInvalidBlock() {
+        return firstInvalidBlock;
+    }
+
+    /**
+     * Gets the number of blocks whose proof of work was redone.
+     *
+     * @return The number of blocks re-mined
+     */
+    public int getBlocksRemined() {
+        return blocksRemined;
+    }
+
+    /**
+     * Gets the number of hashes computed during the repair.
+     *
+     * @return The number of hashes
+     */
+    public long getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Describes the repair in one line.
+     *
+     * @return A summary of the repair
+     */
+    @Override
+    public String toString() {
+        if (firstInvalidBlock < 0) {
+            return "no invalid blocks, nothing re-mined";
+        }
+        return "re-mined " + blocksRemined + " block(s) from block " + firstInvalidBlock
+                + " using " + hashes + " hashes";
+    }
+}
@@ -12,6 +12,8 @@ Author: JYOTI GIRDHARI KHANCHANDANI (JKHANCHA)
         Sends JSON-formatted response messages back to clients
         Supports multiple client connections (one at a time in the current implementation)
         Measures and includes execution time for each operation in the response
+        Sends the whole chain for a download (operation 9) straight from its
+        serialized file to the socket, without building it as a String
         The server demonstrates proper error handling and uses try-with-resources
         for managing network resources. It acts as the real subject in the Proxy pattern,
         performing the actual blockchain operations requested by clients through the proxy.
@@ -22,8 +24,10 @@ package ds.server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
-import ds.client.BlockchainService;
 import ds.message.RequestMessage;
 import ds.message.ResponseMessage;
 
@@ -31,24 +35,30 @@ import ds.message.ResponseMessage;
 
 public class ServerTCP {
     private static final int PORT = 7777;
-    private static BlockchainService blockchainService;
+    private static RealBlockchainService blockchainService;
 
     public static void main(String[] args) {
         blockchainService = new RealBlockchainService();
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        // Channels rather than plain sockets, so downloads can be sent with transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
             System.out.println("Blockchain server running on port " + PORT);
 
             while (true) {
-                try (Socket clientSocket = serverSocket.accept();
-                     PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                     BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
+                try (SocketChannel clientChannel = serverChannel.accept();
+                     PrintWriter out = new PrintWriter(Channels.newOutputStream(clientChannel), true);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(clientChannel)))) {
 
                     System.out.println("We have a visitor");
                     String requestJson;
                     while ((requestJson = in.readLine()) != null) {
                         System.out.println("THE JSON REQUEST MESSAGE IS: " + requestJson);
                         RequestMessage request = RequestMessage.fromJson(requestJson);
+                        if (request.getOperation() == 9) {
+                            sendBlockchain(clientChannel, out);
+                            continue;
+                        }
                         ResponseMessage response = processRequest(request);
                         String responseJson = response.toJson();
                         System.out.println("THE JSON RESPONSE MESSAGE IS: " + responseJson);
@@ -63,6 +73,43 @@ public class ServerTCP {
         }
     }
 
+    /**
+     * Sends the whole blockchain for a download: a response whose data is the
+     * length of the chain in bytes, then the chain's JSON form copied from the
+     * service's serialized file to the socket by the operating system. If the
+     * chain cannot be exported, the client gets an error response instead and
+     * can go on making requests.
+     *
+     * @param client The client's channel
+     * @param out The writer for response lines on that channel
+     * @throws IOException if the file cannot be read or the client goes away
+     */
+    private static void sendBlockchain(SocketChannel client, PrintWriter out) throws IOException {
+        long startTime = System.currentTimeMillis();
+        Path file;
+        try {
+            file = blockchainService.exportBlockchain();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            String responseJson = new ResponseMessage("ERROR", "Could not export the blockchain: " + e.getMessage(),
+                    System.currentTimeMillis() - startTime).toJson();
+            System.out.println("THE JSON RESPONSE MESSAGE IS: " + responseJson);
+            out.println(responseJson);
+            return;
+        }
+        try (FileChannel dump = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = dump.size();
+            String responseJson = new ResponseMessage("SUCCESS", String.valueOf(length),
+                    System.currentTimeMillis() - startTime).toJson();
+            System.out.println("THE JSON RESPONSE MESSAGE IS: " + responseJson);
+            out.println(responseJson);
+            long sent = 0;
+            while (sent < length) {
+                sent += dump.transferTo(sent, length - sent, client);
+            }
+        }
+    }
+
     private static ResponseMessage processRequest(RequestMessage request) {
         long startTime = System.currentTimeMillis();
         String status = "SUCCESS";
@@ -90,6 +137,12 @@ public class ServerTCP {
             case 5:
                 data = blockchainService.repairChain();
                 break;
+            case 7:
+                data = blockchainService.getBlockByHash(request.getData());
+                break;
+            case 8:
+                data = blockchainService.importBlockchain(request.getData());
+                break;
             default:
                 status = "ERROR";
                 data = "Invalid operation";
@@ -0,0 +1,224 @@
+package ds.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Experimental hasher that evaluates several consecutive nonces per step with the
+ * incubating Java Vector API, one nonce per lane of an IntVector (4 to 16 lanes
+ * depending on the CPU). The header prefix is absorbed once per block into a scalar
+ * midstate, which is broadcast to every lane. Each step the lanes' message words are
+ * gathered, the SHA-256 rounds run on IntVectors, and a lane mask of the digests with
+ * enough leading zero bits picks the lowest winning lane, so the nonce found is the same
+ * one the scalar search returns.
+ *
+ * A step needs every lane's message to be the same length, so steps whose decimal
+ * nonces cross a power of ten, and single-nonce hash() calls, are done with the scalar
+ * Sha256HeaderHasher instead. Binary (version 2) nonces always have the same length.
+ *
+ * Only loaded through HashEngine.VECTOR, and only when the JVM runs with
+ * --add-modules jdk.incubator.vector.
+ */
+public class VectorHeaderHasher implements NonceHasher {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private final int[] midstate = new int[8];
+    private final byte[][] messages = new byte[LANES][2 * Sha256.BLOCK_SIZE];
+    private final int[] words = new int[64 * LANES];
+    private final int[] state = new int[8 * LANES];
+    private byte[] headerSuffix = new byte[0];
+    private boolean binaryNonce;
+    private Sha256HeaderHasher scalar;
+    private int prefixLength;
+    private int tailLength;
+    private int messageEnd;
+    private int blocks;
+
+    /**
+     * Creates a hasher. HashEngine keeps one per thread.
+     */
+    public VectorHeaderHasher() {
+    }
+
+    @Override
+    public void reset(Block block) {
+        scalar = Sha256HeaderHasher.forCurrentThread();
+        scalar.reset(block);
+
+        byte[] prefix = block.headerPrefix();
+        int full = prefix.length / Sha256.BLOCK_SIZE * Sha256.BLOCK_SIZE;
+        Sha256.init(midstate);
+        int[] w = new int[64];
+        for (int offset = 0; offset < full; offset += Sha256.BLOCK_SIZE) {
+            Sha256.compress(midstate, prefix, offset, w);
+        }
+
+        tailLength = prefix.length - full;
+        for (byte[] message : messages) {
+            Arrays.fill(message, (byte) 0);
+            System.arraycopy(prefix, full, message, 0, tailLength);
+        }
+        prefixLength = prefix.length;
+        headerSuffix = block.headerSuffix();
+        binaryNonce = block.hasBinaryNonce();
+        messageEnd = -1;
+    }
+
+    @Override
+    public byte[] hash(long nonce) {
+        return scalar.hash(nonce);
+    }
+
+    @Override
+    public long findInRange(long first, long last, int zeroBits, AtomicLong bound) {
+        long n = first;
+        while (true) {
+            if (n > bound.get()) {
+                return ParallelMiner.NOT_FOUND;
+            }
+            long stepLast = n + LANES - 1;
+            if (stepLast < n || stepLast > last || (!binaryNonce && digitCount(n) != digitCount(stepLast))) {
+                // Not a full step of equal length messages: try this nonce on its own
+                if (HeaderHasher.hasLeadingZeroBits(scalar.hash(n), zeroBits)) {
+                    return n;
+                }
+                if (n == last) {
+                    return ParallelMiner.NOT_FOUND;
+                }
+                n++;
+                continue;
+            }
+
+            int lane = firstValidLane(n, zeroBits);
+            if (lane >= 0) {
+                return n + lane;
+            }
+            if (stepLast == last) {
+                return ParallelMiner.NOT_FOUND;
+            }
+            n = stepLast + 1;
+        }
+    }
+
+    /**
+     * Hashes nonces n to n + LANES - 1 together.
+     *
+     * @return The lowest lane whose digest has enough leading zero bits, or -1
+     */
+    private int firstValidLane(long n, int zeroBits) {
+        int end = 0;
+        for (int lane = 0; lane < LANES; lane++) {
+            byte[] message = messages[lane];
+            end = HeaderHasher.writeNonce(n + lane, binaryNonce, message, tailLength);
+            System.arraycopy(headerSuffix, 0, message, end, headerSuffix.length);
+            end += headerSuffix.length;
+        }
+        if (end != messageEnd) {
+            for (byte[] message : messages) {
+                Arrays.fill(message, end, message.length, (byte) 0);
+                blocks = Sha256.pad(message, end, prefixLength + (end - tailLength));
+            }
+            messageEnd = end;
+        }
+
+        for (int i = 0; i < 8; i++) {
+            Arrays.fill(state, i * LANES, (i + 1) * LANES, midstate[i]);
+        }
+        for (int block = 0; block < blocks; block++) {
+            compress(block * Sha256.BLOCK_SIZE);
+        }
+
+        VectorMask<Integer> valid = SPECIES.maskAll(true);
+        int bits = zeroBits;
+        for (int i = 0; i < 8 && bits > 0; i++, bits -= 32) {
+            int mask = bits >= 32 ? -1 : ~(-1 >>> bits);
+            IntVector word = IntVector.fromArray(SPECIES, state, i * LANES);
+            valid = valid.and(word.and(mask).compare(VectorOperators.EQ, 0));
+        }
+        int lane = valid.firstTrue();
+        return lane < LANES ? lane : -1;
+    }
+
+    /**
+     * Runs one compression round on every lane, updating state in place.
+     */
+    private void compress(int offset) {
+        for (int t = 0; t < 16; t++) {
+            for (int lane = 0; lane < LANES; lane++) {
+                byte[] m = messages[lane];
+                int i = offset + 4 * t;
+                words[t * LANES + lane] = (m[i] << 24) | ((m[i + 1] & 0xff) << 16)
+                        | ((m[i + 2] & 0xff) << 8) | (m[i + 3] & 0xff);
+            }
+        }
+        for (int t = 16; t < 64; t++) {
+            IntVector x = IntVector.fromArray(SPECIES, words, (t - 15) * LANES);
+            IntVector y = IntVector.fromArray(SPECIES, words, (t - 2) * LANES);
+            IntVector s0 = x.lanewise(VectorOperators.ROR, 7)
+                    .lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.ROR, 18))
+                    .lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 3));
+            IntVector s1 = y.lanewise(VectorOperators.ROR, 17)
+                    .lanewise(VectorOperators.XOR, y.lanewise(VectorOperators.ROR, 19))
+                    .lanewise(VectorOperators.XOR, y.lanewise(VectorOperators.LSHR, 10));
+            IntVector.fromArray(SPECIES, words, (t - 16) * LANES)
+                    .add(s0)
+                    .add(IntVector.fromArray(SPECIES, words, (t - 7) * LANES))
+                    .add(s1)
+                    .intoArray(words, t * LANES);
+        }
+
+        IntVector a = IntVector.fromArray(SPECIES, state, 0);
+        IntVector b = IntVector.fromArray(SPECIES, state, LANES);
+        IntVector c = IntVector.fromArray(SPECIES, state, 2 * LANES);
+        IntVector d = IntVector.fromArray(SPECIES, state, 3 * LANES);
+        IntVector e = IntVector.fromArray(SPECIES, state, 4 * LANES);
+        IntVector f = IntVector.fromArray(SPECIES, state, 5 * LANES);
+        IntVector g = IntVector.fromArray(SPECIES, state, 6 * LANES);
+        IntVector h = IntVector.fromArray(SPECIES, state, 7 * LANES);
+
+        for (int t = 0; t < 64; t++) {
+            IntVector bigSigma1 = e.lanewise(VectorOperators.ROR, 6)
+                    .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 11))
+                    .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 25));
+            IntVector choose = g.lanewise(VectorOperators.XOR, e.and(f.lanewise(VectorOperators.XOR, g)));
+            IntVector t1 = h.add(bigSigma1).add(choose).add(Sha256.K[t])
+                    .add(IntVector.fromArray(SPECIES, words, t * LANES));
+            IntVector bigSigma0 = a.lanewise(VectorOperators.ROR, 2)
+                    .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 13))
+                    .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 22));
+            IntVector majority = a.and(b).or(c.and(a.or(b)));
+            IntVector t2 = bigSigma0.add(majority);
+            h = g;
+            g = f;
+            f = e;
+            e = d.add(t1);
+            d = c;
+            c = b;
+            b = a;
+            a = t1.add(t2);
+        }
+
+        IntVector.fromArray(SPECIES, state, 0).add(a).intoArray(state, 0);
+        IntVector.fromArray(SPECIES, state, LANES).add(b).intoArray(state, LANES);
+        IntVector.fromArray(SPECIES, state, 2 * LANES).add(c).intoArray(state, 2 * LANES);
+        IntVector.fromArray(SPECIES, state, 3 * LANES).add(d).intoArray(state, 3 * LANES);
+        IntVector.fromArray(SPECIES, state, 4 * LANES).add(e).intoArray(state, 4 * LANES);
+        IntVector.fromArray(SPECIES, state, 5 * LANES).add(f).intoArray(state, 5 * LANES);
+        IntVector.fromArray(SPECIES, state, 6 * LANES).add(g).intoArray(state, 6 * LANES);
+        IntVector.fromArray(SPECIES, state, 7 * LANES).add(h).intoArray(state, 7 * LANES);
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            count++;
+        }
+        return count;
+    }
+}
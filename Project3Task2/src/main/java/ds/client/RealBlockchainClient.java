@@ -23,6 +23,9 @@ import ds.message.ResponseMessage;
 
 import java.net.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 
@@ -71,6 +74,8 @@ public class RealBlockchainClient implements IBlockchainClient {
         System.out.println("4. Corrupt the chain.");
         System.out.println("5. Hide the corruption by repairing the chain.");
         System.out.println("6. Exit.");
+        System.out.println("7. Look up a block by its hash.");
+        System.out.println("8. Import a chain from a dump file.");
         System.out.print("Enter your choice: ");
     }
 
@@ -82,7 +87,8 @@ public class RealBlockchainClient implements IBlockchainClient {
      *
      * @param choice  The user's choice from the menu (operation to perform).
      * @param scanner A Scanner object to read user input from the command line.
-     * @return A RequestMessage object containing operation details.
+     * @return A RequestMessage object containing operation details, or null if there is
+     *         nothing to send (e.g., the dump file to import could not be read).
      * @throws Exception If an error occurs during request creation (e.g., invalid input).
      */
     @Override
@@ -106,6 +112,20 @@ public class RealBlockchainClient implements IBlockchainClient {
                 String newData = scanner.nextLine();
                 data = blockId + "," + newData;
                 break;
+            case 7:
+                System.out.print("Enter block hash: ");
+                data = scanner.nextLine();
+                break;
+            case 8:
+                System.out.print("Enter the file holding the chain dump: ");
+                String path = scanner.nextLine().trim();
+                try {
+                    data = Files.readString(Paths.get(path));
+                } catch (IOException | InvalidPathException e) {
+                    System.out.println("Could not read " + path + ": " + e.getMessage());
+                    return null;
+                }
+                break;
             default:
                 break;
         }
@@ -138,6 +158,7 @@ public class RealBlockchainClient implements IBlockchainClient {
                 scanner.nextLine(); // Consume newline
 
                 RequestMessage request = createRequest(choice, scanner);
+                if (request == null) continue; // Nothing to send; back to the menu
                 out.println(request.toJson());
 
                 String responseJson = in.readLine();
@@ -4,9 +4,13 @@ import ds.message.RequestMessage;
 import ds.message.ResponseMessage;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
@@ -67,6 +71,8 @@ public class SigningClientTCP implements IBlockchainClient {
         System.out.println("4. Corrupt the chain.");
         System.out.println("5. Hide corruption by repairing the chain.");
         System.out.println("6. Exit.");
+        System.out.println("7. Look up a block by its hash.");
+        System.out.println("8. Import a chain from a dump file.");
         System.out.print("Enter your choice: ");
     }
     /**
@@ -74,7 +80,8 @@ public class SigningClientTCP implements IBlockchainClient {
      *
      * @param choice  The user's choice from the menu.
      * @param scanner A Scanner object to read user input.
-     * @return A signed RequestMessage object containing operation details and signature.
+     * @return A signed RequestMessage object containing operation details and signature,
+     *         or null if there is nothing to send (e.g., the dump file could not be read).
      * @throws Exception If an error occurs during request creation or signing.
      */
     @Override
@@ -100,6 +107,22 @@ public class SigningClientTCP implements IBlockchainClient {
                 String newData = scanner.nextLine();
                 data = blockId + "," + newData;
                 break;
+            case 7:
+                // Look up a block by its hash
+                System.out.print("Enter block hash: ");
+                data = scanner.nextLine();
+                break;
+            case 8:
+                // Import a chain from a dump file
+                System.out.print("Enter the file holding the chain dump: ");
+                String path = scanner.nextLine().trim();
+                try {
+                    data = Files.readString(Paths.get(path));
+                } catch (IOException | InvalidPathException e) {
+                    System.out.println("Could not read " + path + ": " + e.getMessage());
+                    return null;
+                }
+                break;
             default:
                 break;
         }
@@ -148,6 +171,9 @@ public class SigningClientTCP implements IBlockchainClient {
                 }
 
                 RequestMessage request = createRequest(choice, scanner);
+                if (request == null) {
+                    continue; // Nothing to send; back to the menu
+                }
                 out.println(request.toJson());
 
                 String responseJson = in.readLine();
@@ -21,6 +21,11 @@ import com.google.gson.Gson;
 import com.google.gson.Gson;
 
 public class RequestMessage {
+    /**
+     * 0 status, 1 add a transaction, 2 verify, 3 view, 4 corrupt, 5 repair,
+     * 7 get a block by its hash (given as data), 8 replace the chain with the
+     * JSON dump given as data (in the form view returns).
+     */
     private int operation;
     private String data;
     private int difficulty;
@@ -0,0 +1,24 @@
+package ds.server;
+
+/**
+ * This enum says how a Block's difficulty number is to be read.
+ * HEX_DIGITS is the original meaning, where each step multiplies the expected work
+ * by 16. BITS counts leading zero bits of the raw digest instead, so difficulty can
+ * be tuned in steps of 2x.
+ */
+public enum DifficultyUnit {
+    /** Difficulty is the number of leading zero hex digits in the hash. */
+    HEX_DIGITS,
+    /** Difficulty is the number of leading zero bits in the hash. */
+    BITS;
+
+    /**
+     * Converts a difficulty in this unit to the number of leading zero bits it requires.
+     *
+     * @param difficulty The difficulty in this unit
+     * @return The required number of leading zero bits
+     */
+    public int zeroBits(int difficulty) {
+        return this == BITS ? difficulty : 4 * difficulty;
+    }
+}
@@ -0,0 +1,131 @@
+package ds.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * This class remembers measured hash rates in a small properties file, so a
+ * restarted server knows its hashes per second straight away instead of
+ * calibrating again. Each rate is stored under a key naming the host and JVM
+ * (see machineKey()) together with whatever else the rate depends on, such as
+ * the hash algorithm and number of mining threads, so a file copied to another
+ * machine or run on another JVM is simply not used.
+ *
+ * Saves go to a temporary file that is then moved over the old one, so a crash
+ * mid-save leaves the previous rates intact. A save that fails is reported on
+ * System.err; the rate just measured is still used, it is only measured again
+ * after a restart.
+ */
+public class HashRateCache {
+    private static volatile String machineKey;
+
+    private final Path file;
+
+    /**
+     * Creates a cache backed by the given file. The file and its directory are
+     * created on the first save.
+     *
+     * @param file The properties file to keep rates in
+     */
+    public HashRateCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the file rates are kept in.
+     *
+     * @return The properties file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets a key naming this host and JVM: the host name, the JVM vendor, name
+     * and version, the CPU architecture and the number of processors.
+     *
+     * @return The machine key
+     */
+    public static String machineKey() {
+        String key = machineKey;
+        if (key == null) {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "unknown-host";
+            }
+            key = host + "|" + System.getProperty("java.vm.vendor") + " " + System.getProperty("java.vm.name")
+                    + " " + System.getProperty("java.vm.version") + "|" + System.getProperty("os.arch")
+                    + "|" + Runtime.getRuntime().availableProcessors() + " cpus";
+            machineKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Looks up a saved rate.
+     *
+     * @param key The key the rate was saved under
+     * @return The hashes per second, or 0 if none is saved or the file can't be read
+     */
+    public int load(String key) {
+        try {
+            String value = read().getProperty(key);
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (IOException | NumberFormatException e) {
+            // A damaged file only costs a calibration
+            return 0;
+        }
+    }
+
+    /**
+     * Saves a rate, keeping the rates saved under other keys. A failure, e.g. a
+     * read-only directory, is reported rather than thrown, since saving runs at
+     * the end of a calibration that should still deliver its rate.
+     *
+     * @param key The key to save the rate under
+     * @param hashesPerSecond The measured hashes per second
+     * @return true if the rate was saved
+     */
+    public synchronized boolean save(String key, int hashesPerSecond) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Properties rates;
+            try {
+                rates = read();
+            } catch (IOException e) {
+                rates = new Properties();
+            }
+            rates.setProperty(key, Integer.toString(hashesPerSecond));
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                rates.store(out, "Measured hashes per second by host, JVM and mining setup");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not save hash rate to " + file + ": " + e);
+            return false;
+        }
+    }
+
+    private Properties read() throws IOException {
+        Properties rates = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            rates.load(in);
+        } catch (NoSuchFileException e) {
+            // Nothing saved yet
+        }
+        return rates;
+    }
+}
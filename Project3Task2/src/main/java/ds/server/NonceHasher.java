@@ -0,0 +1,52 @@
+package ds.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This interface is implemented by the per-thread header hashers the miner uses.
+ * An implementation is prepared once per block with reset() and then asked for the
+ * raw digest of the header with one nonce after another.
+ */
+public interface NonceHasher {
+    /**
+     * Prepares the hasher for a block that is about to be mined.
+     *
+     * @param block The block to hash headers for
+     */
+    void reset(Block block);
+
+    /**
+     * Hashes the block header with the given nonce.
+     *
+     * @param nonce The nonce to hash with
+     * @return The raw digest. The array may be reused by the next call.
+     */
+    byte[] hash(long nonce);
+
+    /**
+     * Tries the nonces first to last in increasing order and returns the first one
+     * whose hash starts with the given number of zero bits. The search gives up
+     * once it passes bound, because a smaller winner is already known by then.
+     * Implementations that hash several nonces at a time override this, but must
+     * still return the smallest valid nonce in the range.
+     *
+     * @param first The first nonce to try
+     * @param last The last nonce to try
+     * @param zeroBits The number of leading zero bits required
+     * @param bound The smallest winning nonce found so far by any thread
+     * @return The first valid nonce, or ParallelMiner.NOT_FOUND
+     */
+    default long findInRange(long first, long last, int zeroBits, AtomicLong bound) {
+        for (long n = first; ; n++) {
+            if (n > bound.get()) {
+                return ParallelMiner.NOT_FOUND;
+            }
+            if (HeaderHasher.hasLeadingZeroBits(hash(n), zeroBits)) {
+                return n;
+            }
+            if (n == last) {
+                return ParallelMiner.NOT_FOUND;
+            }
+        }
+    }
+}
@@ -9,6 +9,12 @@
  *
  *
  *
+ * The chain, mining checkpoint and measured hash rates are kept in a data
+ * directory: ~/.blockchain by default, or the one named by the blockchain.dir
+ * system property (e.g. -Dblockchain.dir=/var/lib/blockchain). Setting
+ * blockchain.dir empty keeps nothing on disk, so the chain starts from a
+ * genesis block every time.
+ *
  *NOTE : This code is generated with assisstance from Perplexity AI.
  *
  */
@@ -16,16 +22,75 @@ package ds.server;
 import ds.message.RequestMessage;
 import ds.message.ResponseMessage;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 public class RealBlockchainServer implements IBlockchainServer {
+    /**
+     * The longest a single block may be mined for before the request gives up,
+     * so one high difficulty request cannot hold the server indefinitely.
+     */
+    private static final long MINING_TIMEOUT_SECONDS = 60;
+    /**
+     * The system property naming the data directory; set empty to keep nothing on disk.
+     */
+    public static final String DATA_DIRECTORY_PROPERTY = "blockchain.dir";
+    /**
+     * The data directory used when blockchain.dir is not set.
+     */
+    private static final Path DEFAULT_DATA_DIRECTORY = Paths.get(System.getProperty("user.home"), ".blockchain");
     private BlockChain blockchain;
     /**
-     * Constructor initializes the blockchain and creates a genesis block.
-     * The genesis block is the first block of the blockchain.
+     * Constructor keeping the server's data in the directory the blockchain.dir
+     * system property names (see dataDirectoryFromProperty).
      */
     public RealBlockchainServer() {
+        this(dataDirectoryFromProperty());
+    }
+    /**
+     * Constructor reopens the blockchain kept in the data directory, or creates one with a genesis block.
+     * The genesis block is the first block of the blockchain. Only block headers
+     * are kept on the heap; bodies are read back from the body store when needed.
+     * Mining progress is checkpointed, so a block interrupted by a restart carries
+     * on where it was. The directory holds:
+     *   verifying-chain/            the chain (see BlockLog)
+     *   verifying-checkpoint.dat    progress of the block being mined (see MiningCheckpoint)
+     *   hashrate.properties         measured hash rates, keyed by host and JVM (see HashRateCache)
+     *
+     * @param dataDirectory The data directory, or null to keep nothing on disk
+     */
+    public RealBlockchainServer(Path dataDirectory) {
         this.blockchain = new BlockChain();
-        Block genesisBlock = new Block(0, blockchain.getTime(), "Genesis", 2);
-        blockchain.addBlock(genesisBlock);
+        if (dataDirectory != null) {
+            blockchain.setHashRateCache(new HashRateCache(dataDirectory.resolve("hashrate.properties")));
+            blockchain.setCheckpoint(new MiningCheckpoint(dataDirectory.resolve("verifying-checkpoint.dat")));
+            blockchain.open(BlockLog.open(dataDirectory.resolve("verifying-chain")));
+        }
+        if (blockchain.getChainSize() == 0) {
+            Block genesisBlock = new Block(0, blockchain.getTime(), "Genesis", 2);
+            blockchain.addBlock(genesisBlock);
+        }
+        if (dataDirectory != null) {
+            // Block bodies are read back from the log, so reopening writes nothing
+            blockchain.setBodyStore(BodyStore.open(blockchain.getBlockLog()));
+        }
+        // Measure the hash rate in the background once startup mining is done, so the two don't compete
+        blockchain.calibrate();
+    }
+    /**
+     * Gets the data directory the blockchain.dir system property names.
+     *
+     * @return The directory, ~/.blockchain if the property is not set, or null if it is set empty
+     */
+    public static Path dataDirectoryFromProperty() {
+        String directory = System.getProperty(DATA_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return DEFAULT_DATA_DIRECTORY;
+        }
+        return directory.isEmpty() ? null : Paths.get(directory);
     }
     /**
      * Processes a client request based on the operation code provided in the request.
@@ -41,6 +106,8 @@ public class RealBlockchainServer implements IBlockchainServer {
      * 3 - Retrieve blockchain data as a String
      * 4 - Corrupt data in a specified block
      * 5 - Repair the blockchain
+     * 7 - Get a block by its hash
+     * 8 - Replace the blockchain with one from a JSON dump (as returned by 3)
      */
     @Override
     public ResponseMessage processRequest(RequestMessage request) {
@@ -54,8 +121,15 @@ public class RealBlockchainServer implements IBlockchainServer {
                 break;
             case 1:
                 Block newBlock = new Block(blockchain.getChainSize(), blockchain.getTime(), request.getData(), request.getDifficulty());
-                blockchain.addBlock(newBlock);
-                data = "Block added successfully";
+                MiningTask task = blockchain.addBlockAsync(newBlock, MINING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (awaitMining(task)) {
+                    data = "Block added successfully";
+                } else {
+                    status = "ERROR";
+                    data = "Mining timed out after " + MINING_TIMEOUT_SECONDS + " seconds (" + task.getAttempts()
+                            + " hashes tried, estimated " + task.getEstimatedTotalMillis() / 1000
+                            + " seconds needed); block not added";
+                }
                 break;
             case 2:
                 data = blockchain.isChainValid();
@@ -67,9 +141,7 @@ public class RealBlockchainServer implements IBlockchainServer {
                 String[] corruptData = request.getData().split(",");
                 int blockId = Integer.parseInt(corruptData[0]);
                 String newData = corruptData[1];
-                Block blockToCorrupt = blockchain.getBlock(blockId);
-                if (blockToCorrupt != null) {
-                    blockToCorrupt.setData(newData);
+                if (blockchain.setBlockData(blockId, newData)) {
                     data = "Block " + blockId + " corrupted";
                 } else {
                     status = "ERROR";
@@ -77,8 +149,25 @@ public class RealBlockchainServer implements IBlockchainServer {
                 }
                 break;
             case 5:
-                blockchain.repairChain();
-                data = "Chain repaired";
+                RepairReport report = blockchain.repairChain();
+                data = "Chain repaired: " + report;
+                break;
+            case 7:
+                Block found = blockchain.getBlockByHash(request.getData().trim());
+                if (found != null) {
+                    data = found.toString();
+                } else {
+                    status = "ERROR";
+                    data = "No block with hash " + request.getData();
+                }
+                break;
+            case 8:
+                try {
+                    data = "Imported " + blockchain.importJson(request.getData()) + " blocks";
+                } catch (IOException | IllegalStateException e) {
+                    status = "ERROR";
+                    data = "Import failed: " + e.getMessage();
+                }
                 break;
             default:
                 status = "ERROR";
@@ -88,18 +177,45 @@ public class RealBlockchainServer implements IBlockchainServer {
         long executionTime = System.currentTimeMillis() - startTime;
         return new ResponseMessage(status, data, executionTime);
     }
+    /**
+     * Waits for a block to be mined and added.
+     *
+     * @param task The task returned by addBlockAsync
+     * @return true if the block was added, false if mining timed out
+     */
+    private boolean awaitMining(MiningTask task) {
+        try {
+            task.get();
+            return true;
+        } catch (ExecutionException e) {
+            if (task.isTimedOut()) {
+                return false;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Retrieves the current status of the blockchain.
      *
      * @return A string summarizing the blockchain's status.
      */
     private String getBlockchainStatus() {
-        return "Current size of chain: " + blockchain.getChainSize() + "\n" +
-                "Difficulty of most recent block: " + blockchain.getLatestBlock().getDifficulty() + "\n" +
-                "Total difficulty for all blocks: " + blockchain.getTotalDifficulty() + "\n" +
+        ChainSnapshot chain = blockchain.snapshot();
+        BodyStore bodies = blockchain.getBodyStore();
+        return "Current size of chain: " + chain.getChainSize() + "\n" +
+                "Difficulty of most recent block: " + chain.getLatestBlock().getDifficulty() + "\n" +
+                "Total difficulty for all blocks: " + chain.getTotalDifficulty() + "\n" +
+                "Average difficulty per block: " + chain.getAverageDifficulty() + "\n" +
                 "Approximate hashes per second on this machine: " + blockchain.getHashesPerSecond() + "\n" +
-                "Expected total hashes required for the whole chain: " + blockchain.getTotalExpectedHashes() + "\n" +
-                "Nonce for most recent block: " + blockchain.getLatestBlock().getNonce() + "\n" +
-                "Chain hash: " + blockchain.getChainHash();
+                "Expected total hashes required for the whole chain: " + chain.getTotalExpectedHashes() + "\n" +
+                "Nonce for most recent block: " + chain.getLatestBlock().getNonce() + "\n" +
+                "Estimated heap used by blocks: " + blockchain.getHeapBytes() + " bytes\n" +
+                "Body cache hit rate: " + (bodies != null ? String.format("%.1f%%", bodies.getHitRate() * 100) : "no body store") + "\n" +
+                "Chain hash: " + chain.getChainHash();
     }
 }
@@ -0,0 +1,190 @@
+package ds.server;
+
+/**
+ * A plain Java implementation of the SHA-256 compression function (FIPS 180-4).
+ * The state is kept in an int array and the caller supplies the message schedule
+ * buffer, so compressing a block allocates nothing. The rounds are unrolled eight
+ * at a time by rotating the roles of the working variables instead of shifting them.
+ *
+ * Sha256HeaderHasher builds on this to hash block headers from a midstate.
+ * digest() hashes a whole message and is used to cross-check against MessageDigest.
+ */
+public class Sha256 {
+    static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /** The size of one SHA-256 message block in bytes. */
+    public static final int BLOCK_SIZE = 64;
+
+    private Sha256() {
+    }
+
+    /**
+     * Loads the SHA-256 initial hash value into a state array.
+     *
+     * @param state An array of at least 8 ints
+     */
+    public static void init(int[] state) {
+        System.arraycopy(INITIAL_STATE, 0, state, 0, 8);
+    }
+
+    /**
+     * Hashes a whole message. Not used for mining; it allocates its buffers per call.
+     *
+     * @param message The bytes to hash
+     * @return The 32 byte SHA-256 digest
+     */
+    public static byte[] digest(byte[] message) {
+        int[] state = new int[8];
+        int[] w = new int[64];
+        init(state);
+
+        int full = message.length / BLOCK_SIZE * BLOCK_SIZE;
+        for (int offset = 0; offset < full; offset += BLOCK_SIZE) {
+            compress(state, message, offset, w);
+        }
+        byte[] last = new byte[2 * BLOCK_SIZE];
+        int rest = message.length - full;
+        System.arraycopy(message, full, last, 0, rest);
+        int blocks = pad(last, rest, message.length);
+        for (int i = 0; i < blocks; i++) {
+            compress(state, last, i * BLOCK_SIZE, w);
+        }
+
+        byte[] out = new byte[32];
+        writeState(state, out);
+        return out;
+    }
+
+    /**
+     * Writes the SHA-256 padding after the last message bytes in a buffer.
+     * The buffer must hold two blocks and be zero after position length.
+     *
+     * @param buffer The buffer holding the final partial block
+     * @param length The number of message bytes in the buffer
+     * @param totalLength The length of the whole message in bytes
+     * @return The number of blocks (1 or 2) to compress from the buffer
+     */
+    public static int pad(byte[] buffer, int length, long totalLength) {
+        buffer[length] = (byte) 0x80;
+        int blocks = length + 9 <= BLOCK_SIZE ? 1 : 2;
+        long bits = totalLength * 8;
+        int end = blocks * BLOCK_SIZE;
+        for (int i = 1; i <= 8; i++) {
+            buffer[end - i] = (byte) bits;
+            bits >>>= 8;
+        }
+        return blocks;
+    }
+
+    /**
+     * Writes a state array out as the big-endian digest bytes.
+     *
+     * @param state The 8 int state
+     * @param out An array of at least 32 bytes
+     */
+    public static void writeState(int[] state, byte[] out) {
+        for (int i = 0; i < 8; i++) {
+            int v = state[i];
+            out[4 * i] = (byte) (v >>> 24);
+            out[4 * i + 1] = (byte) (v >>> 16);
+            out[4 * i + 2] = (byte) (v >>> 8);
+            out[4 * i + 3] = (byte) v;
+        }
+    }
+
+    /**
+     * Runs the compression function over one 64 byte block.
+     *
+     * @param state The 8 int state, updated in place
+     * @param buffer The bytes holding the block
+     * @param offset Where the block starts in buffer
+     * @param w A scratch array of at least 64 ints for the message schedule
+     */
+    public static void compress(int[] state, byte[] buffer, int offset, int[] w) {
+        for (int t = 0; t < 16; t++) {
+            int i = offset + 4 * t;
+            w[t] = (buffer[i] << 24) | ((buffer[i + 1] & 0xff) << 16)
+                    | ((buffer[i + 2] & 0xff) << 8) | (buffer[i + 3] & 0xff);
+        }
+        for (int t = 16; t < 64; t++) {
+            int x = w[t - 15];
+            int y = w[t - 2];
+            int s0 = Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+            int s1 = Integer.rotateRight(y, 17) ^ Integer.rotateRight(y, 19) ^ (y >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int f = state[5];
+        int g = state[6];
+        int h = state[7];
+
+        for (int t = 0; t < 64; t += 8) {
+            h += bigSigma1(e) + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            d += h;
+            h += bigSigma0(a) + ((a & b) ^ (a & c) ^ (b & c));
+
+            g += bigSigma1(d) + ((d & e) ^ (~d & f)) + K[t + 1] + w[t + 1];
+            c += g;
+            g += bigSigma0(h) + ((h & a) ^ (h & b) ^ (a & b));
+
+            f += bigSigma1(c) + ((c & d) ^ (~c & e)) + K[t + 2] + w[t + 2];
+            b += f;
+            f += bigSigma0(g) + ((g & h) ^ (g & a) ^ (h & a));
+
+            e += bigSigma1(b) + ((b & c) ^ (~b & d)) + K[t + 3] + w[t + 3];
+            a += e;
+            e += bigSigma0(f) + ((f & g) ^ (f & h) ^ (g & h));
+
+            d += bigSigma1(a) + ((a & b) ^ (~a & c)) + K[t + 4] + w[t + 4];
+            h += d;
+            d += bigSigma0(e) + ((e & f) ^ (e & g) ^ (f & g));
+
+            c += bigSigma1(h) + ((h & a) ^ (~h & b)) + K[t + 5] + w[t + 5];
+            g += c;
+            c += bigSigma0(d) + ((d & e) ^ (d & f) ^ (e & f));
+
+            b += bigSigma1(g) + ((g & h) ^ (~g & a)) + K[t + 6] + w[t + 6];
+            f += b;
+            b += bigSigma0(c) + ((c & d) ^ (c & e) ^ (d & e));
+
+            a += bigSigma1(f) + ((f & g) ^ (~f & h)) + K[t + 7] + w[t + 7];
+            e += a;
+            a += bigSigma0(b) + ((b & c) ^ (b & d) ^ (c & d));
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    private static int bigSigma0(int x) {
+        return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+    }
+
+    private static int bigSigma1(int x) {
+        return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+    }
+}